@@ -6,11 +6,23 @@ public class FileCopier {
 	
 	public static void main(String[] args)
 			throws Exception {
-		if (args.length != 2) {
-			throw new IllegalArgumentException(FileCopier.class.getName() + " requires 2 arguments (source path and target path)");
+		if (args.length == 0 || args.length % 2 != 0) {
+			throw new IllegalArgumentException(FileCopier.class.getName() + " requires pairs of arguments (source path and target path)");
+		}
+		boolean failed = false;
+		for (int i = 0; i < args.length; i += 2) {
+			try {
+				Path target = Files.copy(Path.of(args[i]), Path.of(args[i + 1]), StandardCopyOption.REPLACE_EXISTING);
+				System.out.println("File " + args[i] + " has been copied to " + target.toAbsolutePath());
+			} catch (Exception e) {
+				// Names the source, so the failure is attributed to it when the files are copied in a batch
+				System.err.println("Failed to copy " + args[i] + ": " + e);
+				failed = true;
+			}
+		}
+		if (failed) {
+			System.exit(1);
 		}
-		Path target = Files.copy(Path.of(args[0]), Path.of(args[1]), StandardCopyOption.REPLACE_EXISTING);
-		System.out.println("File " + args[0] + " has been copied to " + target.toAbsolutePath());
 	}
 	
 }
@@ -0,0 +1,21 @@
+package ua.od.whcrow.bfpu.cli.actions;
+
+import jakarta.annotation.Nonnull;
+import ua.od.whcrow.bfpu.cli.Setting;
+
+// Exposes the helpers of AbstractAction to the benchmarks
+class BenchmarkAction extends AbstractAction {
+	
+	@Nonnull
+	@Override
+	public String getName() {
+		return "benchmark";
+	}
+	
+	@Nonnull
+	@Override
+	ActionStage openStage(@Nonnull Setting setting) {
+		return new ActionStage() {};
+	}
+	
+}
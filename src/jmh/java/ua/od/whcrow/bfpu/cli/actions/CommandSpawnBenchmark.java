@@ -0,0 +1,59 @@
+package ua.od.whcrow.bfpu.cli.actions;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.helpers.NOPLogger;
+import org.springframework.boot.logging.LogLevel;
+import ua.od.whcrow.bfpu.cli._commons.CommandLineUtil;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// The cost of a command run of "command-line" action apart from the work of the command itself.
+// Use e.g. -p command="cmd /c rem" on Windows.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommandSpawnBenchmark {
+	
+	@Param({"true"})
+	public String command;
+	
+	@Param({"OFF", "DEBUG"})
+	public LogLevel outputLogLevel;
+	
+	private List<String> commandArgs;
+	private CommandRunner runner;
+	
+	@Setup(Level.Trial)
+	public void setUp() {
+		commandArgs = CommandLineUtil.split(command);
+		runner = new CommandRunner("benchmark", NOPLogger.NOP_LOGGER, outputLogLevel, null);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		runner.close();
+	}
+	
+	@Benchmark
+	public int run()
+			throws Exception {
+		return runner.run(commandArgs, command).exitCode();
+	}
+	
+}
@@ -0,0 +1,66 @@
+package ua.od.whcrow.bfpu.cli.actions;
+
+import org.bytedeco.javacv.Frame;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.slf4j.helpers.NOPLogger;
+
+import java.util.concurrent.TimeUnit;
+
+// The loop alone, the grabber and the recorder are replaced with a generated frame and a blackhole
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FrameDropDuplicateBenchmark {
+	
+	private static final int FRAME_COUNT = 10_000;
+	
+	// Source/target frame rate, e.g. 24 to 30 fps duplicates the frames, 60 to 30 fps drops them
+	@Param({"0.8", "2.0"})
+	public double step;
+	
+	private Frame videoFrame;
+	private Frame audioFrame;
+	
+	@Setup(Level.Trial)
+	public void setUp() {
+		videoFrame = new Frame(640, 360, Frame.DEPTH_UBYTE, 3);
+		audioFrame = new Frame();
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		videoFrame.close();
+		audioFrame.close();
+	}
+	
+	// Each second grabbed frame is an audio one
+	@Benchmark
+	@OperationsPerInvocation(FRAME_COUNT)
+	public void dropOrDuplicateFrames(Blackhole blackhole)
+			throws Exception {
+		int[] grabbedFrameCount = {0};
+		FFmpegConverter.dropOrDuplicateFrames(
+				() -> grabbedFrameCount[0] < FRAME_COUNT
+						? (grabbedFrameCount[0]++ % 2 == 0 ? videoFrame : audioFrame)
+						: null,
+				blackhole::consume, step, NOPLogger.NOP_LOGGER);
+	}
+	
+}
@@ -0,0 +1,76 @@
+package ua.od.whcrow.bfpu.cli.actions;
+
+import org.apache.commons.io.file.PathUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ua.od.whcrow.bfpu.cli.exceptions.ActionRunException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// A single walk through a synthetic tree of empty files, a thousand files per directory
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class PathStreamBenchmark {
+	
+	private static final int FILES_PER_DIR = 1000;
+	
+	@Param({"10000", "1000000"})
+	public int fileCount;
+	
+	@Param({"1", "4"})
+	public int walkParallelism;
+	
+	private Path sourceDirPath;
+	private BenchmarkAction action;
+	private BenchmarkSetting setting;
+	
+	@Setup(Level.Trial)
+	public void setUp()
+			throws IOException {
+		sourceDirPath = Files.createTempDirectory("bfpu-jmh-");
+		for (int i = 0; i < fileCount; i++) {
+			Path dirPath = sourceDirPath.resolve("dir" + i / FILES_PER_DIR);
+			if (i % FILES_PER_DIR == 0) {
+				Files.createDirectory(dirPath);
+			}
+			Files.createFile(dirPath.resolve("file" + i + ".txt"));
+		}
+		action = new BenchmarkAction();
+		setting = new BenchmarkSetting(sourceDirPath, sourceDirPath.resolveSibling(sourceDirPath.getFileName() + "-out"),
+				walkParallelism);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown()
+			throws IOException {
+		PathUtils.deleteDirectory(sourceDirPath);
+	}
+	
+	@Benchmark
+	public long createPathStream()
+			throws ActionRunException {
+		try (Stream<Path> paths = action.createPathStream(setting)) {
+			return paths.count();
+		}
+	}
+	
+}
@@ -0,0 +1,79 @@
+package ua.od.whcrow.bfpu.cli.actions;
+
+import org.apache.commons.io.file.PathUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ua.od.whcrow.bfpu.cli.exceptions.ActionRunException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TargetPathBenchmark {
+	
+	private Path tempDirPath;
+	private Path sourceFilePath;
+	private Path targetFilePath;
+	private BenchmarkSetting setting;
+	private BenchmarkAction action;
+	
+	// The target is claimed and its sub-dirs are created by the first call, as it's done once per file of a run
+	@Setup(Level.Trial)
+	public void setUp()
+			throws IOException, ActionRunException {
+		tempDirPath = Files.createTempDirectory("bfpu-jmh-");
+		Path sourceDirPath = tempDirPath.resolve("source");
+		sourceFilePath = sourceDirPath.resolve("videos/2024/summer/clip.avi");
+		Path destinationDirPath = tempDirPath.resolve("destination");
+		targetFilePath = destinationDirPath.resolve("videos/2024/summer/clip.avi");
+		setting = new BenchmarkSetting(sourceDirPath, destinationDirPath, 1);
+		action = new BenchmarkAction();
+		action.buildTargetFilePath(sourceFilePath, setting);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown()
+			throws IOException {
+		PathUtils.deleteDirectory(tempDirPath);
+	}
+	
+	@Benchmark
+	public Path buildTargetFilePath()
+			throws ActionRunException {
+		return action.buildTargetFilePath(sourceFilePath, setting);
+	}
+	
+	@Benchmark
+	public Path resolveTargetFilePath()
+			throws ActionRunException {
+		return action.resolveTargetFilePath(sourceFilePath, setting);
+	}
+	
+	@Benchmark
+	public Path withOtherExtension() {
+		return action.withExtension(targetFilePath, "mp4");
+	}
+	
+	@Benchmark
+	public Path withSameExtension() {
+		return action.withExtension(targetFilePath, "avi");
+	}
+	
+}
@@ -1,6 +1,8 @@
 package ua.od.whcrow.bfpu.cli;
 
+import io.micrometer.prometheusmetrics.PrometheusMeterRegistry;
 import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
 import org.apache.commons.lang3.time.DurationFormatUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -8,24 +10,38 @@ import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.SmartLifecycle;
+import ua.od.whcrow.bfpu.cli.actions.ActionPipeline;
 import ua.od.whcrow.bfpu.cli.actions.HelpAction;
 import ua.od.whcrow.bfpu.cli.exceptions.ActionNotFoundException;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 
 @SpringBootApplication
 @EnableConfigurationProperties(Properties.class)
-public class Application implements CommandLineRunner {
+public class Application implements CommandLineRunner, SmartLifecycle {
 	
 	private static final Logger LOG = LoggerFactory.getLogger(Application.class);
 	
 	private final Properties properties;
 	private final Set<Action> actions;
+	private final PrometheusMeterRegistry prometheusRegistry;
+	private final CountDownLatch finished = new CountDownLatch(1);
+	private volatile boolean running;
 	
-	private Application(@Nonnull Properties properties, @Nonnull Set<Action> actions) {
+	private Application(@Nonnull Properties properties, @Nonnull Set<Action> actions,
+			@Nullable PrometheusMeterRegistry prometheusRegistry) {
 		this.properties = properties;
 		this.actions = actions;
+		this.prometheusRegistry = prometheusRegistry;
 	}
 	
 	public static void main(@Nonnull String[] args) {
@@ -35,23 +51,97 @@ public class Application implements CommandLineRunner {
 	@Override
 	public void run(@Nonnull String... args)
 			throws Exception {
+		try {
+			runActions();
+		} finally {
+			writeMetrics();
+			finished.countDown();
+		}
+	}
+	
+	@Override
+	public void start() {
+		running = true;
+	}
+	
+	// Stopped first on the shutdown, e.g. by Ctrl+C. The watching actions finish the files being processed, and the
+	// context is closed after them, so the metrics are pushed and the logs are written completely.
+	@Override
+	public void stop() {
+		running = false;
+		if (!ActionPipeline.stopWatching()) {
+			return;
+		}
+		try {
+			finished.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	@Override
+	public boolean isRunning() {
+		return running;
+	}
+	
+	private void runActions()
+			throws Exception {
 		String[] actionNames = properties.actions() == null
 				? new String[]{HelpAction.ACTION_NAME} : properties.actions();
 		LOG.info("Actions: {}", String.join(", ", actionNames));
 		Setting setting = new SettingImpl(properties,
 				Arrays.stream(actionNames).allMatch(a -> a.equals(HelpAction.ACTION_NAME)));
 		LOG.info("Setting: {}", setting);
+		// The watching actions can't run one after another, as each of them runs until the application is stopped
+		if ((setting.isPipelined() || setting.isWatch()) && actionNames.length > 1) {
+			List<Action> pipeline = new ArrayList<>();
+			for (String actionName : actionNames) {
+				pipeline.add(findAction(actionName));
+			}
+			long start = System.currentTimeMillis();
+			ActionPipeline.run(pipeline, setting);
+			long duration = System.currentTimeMillis() - start;
+			LOG.info("Pipeline of actions \"{}\" finished in {} ({} ms)", String.join(", ", actionNames),
+					DurationFormatUtils.formatDurationWords(duration, true, true), duration);
+			return;
+		}
 		for (String actionName : actionNames) {
 			long start = System.currentTimeMillis();
-			actions.stream()
-					.filter(a -> a.getName().equals(actionName))
-					.findFirst()
-					.orElseThrow(() -> new ActionNotFoundException(actionName))
-					.run(setting);
+			findAction(actionName).run(setting);
 			long duration = System.currentTimeMillis() - start;
 			LOG.info("Action \"{}\" finished in {} ({} ms)", actionName,
 					DurationFormatUtils.formatDurationWords(duration, true, true), duration);
 		}
 	}
 	
+	// The metrics of a failed run are written as well
+	private void writeMetrics() {
+		if (properties.metricsFile() == null) {
+			return;
+		}
+		if (prometheusRegistry == null) {
+			LOG.warn("Unable to write the metrics to {} since the Prometheus export is disabled",
+					properties.metricsFile());
+			return;
+		}
+		Path metricsFilePath = Path.of(properties.metricsFile());
+		try {
+			Path metricsDirPath = metricsFilePath.toAbsolutePath().getParent();
+			Files.createDirectories(metricsDirPath);
+			Files.writeString(metricsFilePath, prometheusRegistry.scrape(), StandardCharsets.UTF_8);
+			LOG.info("Metrics are written to {}", metricsFilePath);
+		} catch (IOException e) {
+			LOG.warn("Failed to write the metrics to {}", metricsFilePath, e);
+		}
+	}
+	
+	@Nonnull
+	private Action findAction(@Nonnull String actionName)
+			throws ActionNotFoundException {
+		return actions.stream()
+				.filter(a -> a.getName().equals(actionName))
+				.findFirst()
+				.orElseThrow(() -> new ActionNotFoundException(actionName));
+	}
+	
 }
@@ -2,6 +2,8 @@ package ua.od.whcrow.bfpu.cli;
 
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
+import java.time.Duration;
+
 @ConfigurationProperties
 record Properties (
 		String[] actions,
@@ -10,4 +12,19 @@ record Properties (
 		boolean recursive,
 		String glob,
 		boolean skipOnExistingTarget,
-		boolean failTolerant) {}
+		boolean failTolerant,
+		Integer parallelism,
+		Integer walkParallelism,
+		boolean journal,
+		boolean pipelined,
+		boolean planTargets,
+		Setting.Schedule schedule,
+		Duration progressInterval,
+		boolean watch,
+		Duration watchDebounce,
+		Integer shardIndex,
+		Integer shardCount,
+		boolean lease,
+		Duration leaseTimeout,
+		String node,
+		String metricsFile) {}
@@ -4,6 +4,7 @@ import jakarta.annotation.Nonnull;
 import jakarta.annotation.Nullable;
 
 import java.nio.file.Path;
+import java.time.Duration;
 
 public interface Setting {
 	
@@ -22,4 +23,45 @@ public interface Setting {
 	
 	boolean isFailTolerant();
 	
+	int getParallelism();
+	
+	int getWalkParallelism();
+	
+	boolean isJournal();
+	
+	boolean isPipelined();
+	
+	boolean isPlanTargets();
+	
+	@Nonnull
+	Schedule getSchedule();
+	
+	@Nullable
+	Duration getProgressInterval();
+	
+	boolean isWatch();
+	
+	@Nonnull
+	Duration getWatchDebounce();
+	
+	int getShardIndex();
+	
+	int getShardCount();
+	
+	boolean isLease();
+	
+	@Nonnull
+	Duration getLeaseTimeout();
+	
+	// Names the process among the ones sharing the destination, which keeps its own state files
+	@Nullable
+	String getNode();
+	
+	// The order the files are passed to the workers in, by the workload estimated by the actions, e.g. the file size
+	enum Schedule {
+		ENCOUNTER,
+		LARGEST_FIRST,
+		SMALLEST_FIRST
+	}
+	
 }
@@ -10,17 +10,36 @@ import ua.od.whcrow.bfpu.cli.exceptions.PathNotFoundException;
 import ua.od.whcrow.bfpu.cli.exceptions.SettingException;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 
 class SettingImpl implements Setting {
 	
+	private static final Duration DEFAULT_WATCH_DEBOUNCE = Duration.ofSeconds(10);
+	private static final Duration DEFAULT_LEASE_TIMEOUT = Duration.ofMinutes(5);
+	
 	private final Path source;
 	private final Path destination;
 	private final boolean recursive;
 	private final String glob;
 	private final boolean skipOnExsistingTarget;
 	private final boolean failTolerant;
+	private final int parallelism;
+	private final int walkParallelism;
+	private final boolean journal;
+	private final boolean pipelined;
+	private final boolean planTargets;
+	private final Schedule schedule;
+	private final Duration progressInterval;
+	private final boolean watch;
+	private final Duration watchDebounce;
+	private final int shardIndex;
+	private final int shardCount;
+	private final boolean lease;
+	private final Duration leaseTimeout;
+	private final String node;
 	
 	SettingImpl(@Nonnull Properties properties, boolean helpOnly)
 			throws SettingException, IOException {
@@ -46,6 +65,65 @@ class SettingImpl implements Setting {
 		glob = properties.glob();
 		skipOnExsistingTarget = properties.skipOnExistingTarget();
 		failTolerant = properties.failTolerant();
+		if (properties.parallelism() == null) {
+			parallelism = 1;
+		} else if (properties.parallelism() < 0) {
+			throw new SettingException("Parallelism cannot be negative");
+		} else {
+			parallelism = properties.parallelism() == 0
+					? Runtime.getRuntime().availableProcessors() : properties.parallelism();
+		}
+		if (properties.walkParallelism() == null) {
+			walkParallelism = parallelism;
+		} else if (properties.walkParallelism() < 0) {
+			throw new SettingException("Walk parallelism cannot be negative");
+		} else {
+			walkParallelism = properties.walkParallelism() == 0
+					? Runtime.getRuntime().availableProcessors() : properties.walkParallelism();
+		}
+		journal = properties.journal();
+		pipelined = properties.pipelined();
+		planTargets = properties.planTargets();
+		schedule = properties.schedule() == null ? Schedule.ENCOUNTER : properties.schedule();
+		progressInterval = properties.progressInterval();
+		watch = properties.watch();
+		if (properties.watchDebounce() == null) {
+			watchDebounce = DEFAULT_WATCH_DEBOUNCE;
+		} else if (properties.watchDebounce().isNegative()) {
+			throw new SettingException("Watch debounce cannot be negative");
+		} else {
+			watchDebounce = properties.watchDebounce();
+		}
+		shardCount = properties.shardCount() == null ? 1 : properties.shardCount();
+		if (shardCount < 1) {
+			throw new SettingException("Shard count must be positive");
+		}
+		shardIndex = properties.shardIndex() == null ? 0 : properties.shardIndex();
+		if (shardIndex < 0 || shardIndex >= shardCount) {
+			throw new SettingException("Shard index must be from 0 to " + (shardCount - 1));
+		}
+		lease = properties.lease();
+		if (properties.leaseTimeout() == null) {
+			leaseTimeout = DEFAULT_LEASE_TIMEOUT;
+		} else if (properties.leaseTimeout().isNegative() || properties.leaseTimeout().isZero()) {
+			throw new SettingException("Lease timeout must be positive");
+		} else {
+			leaseTimeout = properties.leaseTimeout();
+		}
+		// Without a name given, a shard is named by its index and a leasing process by its PID and host, which differ
+		// from run to run
+		if (!StringUtils.isBlank(properties.node())) {
+			node = properties.node().strip();
+			if (Path.of(node).getNameCount() != 1 || node.equals(".") || node.equals("..")) {
+				throw new SettingException("Node must be a plain file name");
+			}
+		} else if (shardCount > 1) {
+			node = "shard-" + shardIndex;
+		} else if (lease) {
+			node = ManagementFactory.getRuntimeMXBean().getName();
+		} else {
+			node = null;
+		}
 	}
 	
 	@Nonnull
@@ -81,6 +159,81 @@ class SettingImpl implements Setting {
 		return failTolerant;
 	}
 	
+	@Override
+	public int getParallelism() {
+		return parallelism;
+	}
+	
+	@Override
+	public int getWalkParallelism() {
+		return walkParallelism;
+	}
+	
+	@Override
+	public boolean isJournal() {
+		return journal;
+	}
+	
+	@Override
+	public boolean isPipelined() {
+		return pipelined;
+	}
+	
+	@Override
+	public boolean isPlanTargets() {
+		return planTargets;
+	}
+	
+	@Nonnull
+	@Override
+	public Schedule getSchedule() {
+		return schedule;
+	}
+	
+	@Nullable
+	@Override
+	public Duration getProgressInterval() {
+		return progressInterval;
+	}
+	
+	@Override
+	public boolean isWatch() {
+		return watch;
+	}
+	
+	@Nonnull
+	@Override
+	public Duration getWatchDebounce() {
+		return watchDebounce;
+	}
+	
+	@Override
+	public int getShardIndex() {
+		return shardIndex;
+	}
+	
+	@Override
+	public int getShardCount() {
+		return shardCount;
+	}
+	
+	@Override
+	public boolean isLease() {
+		return lease;
+	}
+	
+	@Nonnull
+	@Override
+	public Duration getLeaseTimeout() {
+		return leaseTimeout;
+	}
+	
+	@Nullable
+	@Override
+	public String getNode() {
+		return node;
+	}
+	
 	@Nonnull
 	@Override
 	public String toString() {
@@ -0,0 +1,92 @@
+package ua.od.whcrow.bfpu.cli._commons;
+
+import jakarta.annotation.Nonnull;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.List;
+
+public class AppendOnlyLog implements Closeable {
+	
+	private static final String TEMP_FILE_SUFFIX = ".tmp";
+	
+	private final Path filePath;
+	private BufferedWriter writer;
+	private long lineCount;
+	
+	public AppendOnlyLog(@Nonnull Path filePath)
+			throws IOException {
+		this.filePath = filePath;
+		Files.createDirectories(filePath.toAbsolutePath().getParent());
+		writer = openWriter();
+	}
+	
+	@Nonnull
+	public Path getFilePath() {
+		return filePath;
+	}
+	
+	@Nonnull
+	public synchronized List<String> readLines()
+			throws IOException {
+		writer.flush();
+		String content = new String(Files.readAllBytes(filePath), StandardCharsets.UTF_8);
+		// A line cut by a crash isn't terminated, skip it
+		int end = content.lastIndexOf('\n');
+		List<String> lines = end < 0 ? List.of() : content.substring(0, end).lines().toList();
+		lineCount = lines.size();
+		if (end + 1 < content.length()) {
+			// Drop the torn tail, so the following appends start on a new line
+			rewrite(lines);
+		}
+		return lines;
+	}
+	
+	public synchronized void append(@Nonnull String line)
+			throws IOException {
+		writer.write(line);
+		writer.write('\n');
+		writer.flush();
+		lineCount++;
+	}
+	
+	public synchronized long getLineCount() {
+		return lineCount;
+	}
+	
+	public synchronized void rewrite(@Nonnull Collection<String> lines)
+			throws IOException {
+		writer.close();
+		Path tempFilePath = filePath.resolveSibling(filePath.getFileName() + TEMP_FILE_SUFFIX);
+		try (BufferedWriter tempWriter = Files.newBufferedWriter(tempFilePath, StandardCharsets.UTF_8)) {
+			for (String line : lines) {
+				tempWriter.write(line);
+				tempWriter.write('\n');
+			}
+		}
+		Files.move(tempFilePath, filePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		lineCount = lines.size();
+		writer = openWriter();
+	}
+	
+	@Nonnull
+	private BufferedWriter openWriter()
+			throws IOException {
+		return Files.newBufferedWriter(filePath, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+				StandardOpenOption.APPEND);
+	}
+	
+	@Override
+	public synchronized void close()
+			throws IOException {
+		writer.close();
+	}
+	
+}
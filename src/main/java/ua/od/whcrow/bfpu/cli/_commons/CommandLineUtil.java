@@ -0,0 +1,59 @@
+package ua.od.whcrow.bfpu.cli._commons;
+
+import jakarta.annotation.Nonnull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public final class CommandLineUtil {
+	
+	private CommandLineUtil() {
+	}
+	
+	// Splits by the whitespaces outside the single/double quotes and drops the quotes. A backslash escapes a quote only,
+	// so the backslashes of Windows paths are kept as is.
+	@Nonnull
+	public static List<String> split(@Nonnull String commandLine) {
+		List<String> args = new ArrayList<>();
+		StringBuilder arg = new StringBuilder();
+		boolean argStarted = false;
+		char quote = 0;
+		for (int i = 0; i < commandLine.length(); i++) {
+			char c = commandLine.charAt(i);
+			if (c == '\\' && i + 1 < commandLine.length() && isQuote(commandLine.charAt(i + 1))) {
+				arg.append(commandLine.charAt(++i));
+				argStarted = true;
+			} else if (quote != 0) {
+				if (c == quote) {
+					quote = 0;
+				} else {
+					arg.append(c);
+				}
+			} else if (isQuote(c)) {
+				quote = c;
+				argStarted = true;
+			} else if (Character.isWhitespace(c)) {
+				if (argStarted) {
+					args.add(arg.toString());
+					arg.setLength(0);
+					argStarted = false;
+				}
+			} else {
+				arg.append(c);
+				argStarted = true;
+			}
+		}
+		if (quote != 0) {
+			throw new IllegalArgumentException("Unclosed quote " + quote + " in the command line: " + commandLine);
+		}
+		if (argStarted) {
+			args.add(arg.toString());
+		}
+		return args;
+	}
+	
+	private static boolean isQuote(char c) {
+		return c == '"' || c == '\'';
+	}
+	
+}
@@ -0,0 +1,104 @@
+package ua.od.whcrow.bfpu.cli._commons;
+
+import jakarta.annotation.Nonnull;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+
+// The target is replaced atomically by each operation: the result is prepared under a temporary name next to it and
+// renamed over it then, so the target is never left partial
+public final class FileUtil {
+	
+	private static final String TEMP_FILE_SUFFIX = ".tmp";
+	
+	private FileUtil() {
+	}
+	
+	// FileChannel.transferTo lets the OS copy the data without passing it through the user space
+	// (copy_file_range/sendfile on Linux). The modification time is preserved.
+	public static void copy(@Nonnull Path sourceFilePath, @Nonnull Path targetFilePath)
+			throws IOException {
+		Path tempFilePath = buildTempFilePath(targetFilePath);
+		try {
+			try (
+					FileChannel source = FileChannel.open(sourceFilePath, StandardOpenOption.READ);
+					FileChannel target = FileChannel.open(tempFilePath, StandardOpenOption.CREATE_NEW,
+							StandardOpenOption.WRITE)
+			) {
+				long size = source.size();
+				long position = 0;
+				while (position < size) {
+					long transferred = source.transferTo(position, size - position, target);
+					if (transferred <= 0) {
+						// The source has been truncated meanwhile
+						break;
+					}
+					position += transferred;
+				}
+			}
+			Files.setLastModifiedTime(tempFilePath, Files.getLastModifiedTime(sourceFilePath));
+			Files.move(tempFilePath, targetFilePath, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException | RuntimeException e) {
+			deleteQuietly(tempFilePath, e);
+			throw e;
+		}
+	}
+	
+	// Renames the file if the source and the target share a file store, otherwise copies it and deletes the source.
+	// Returns whether the file has been renamed.
+	public static boolean move(@Nonnull Path sourceFilePath, @Nonnull Path targetFilePath)
+			throws IOException {
+		try {
+			Files.move(sourceFilePath, targetFilePath, StandardCopyOption.ATOMIC_MOVE);
+			return true;
+		} catch (AtomicMoveNotSupportedException e) {
+			copy(sourceFilePath, targetFilePath);
+			Files.delete(sourceFilePath);
+			return false;
+		}
+	}
+	
+	public static void link(@Nonnull Path linkFilePath, @Nonnull Path existingFilePath)
+			throws IOException {
+		Path tempFilePath = buildTempFilePath(linkFilePath);
+		try {
+			Files.createLink(tempFilePath, existingFilePath);
+			Files.move(tempFilePath, linkFilePath, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException | RuntimeException e) {
+			deleteQuietly(tempFilePath, e);
+			throw e;
+		}
+	}
+	
+	public static void symlink(@Nonnull Path linkFilePath, @Nonnull Path targetFilePath)
+			throws IOException {
+		Path tempFilePath = buildTempFilePath(linkFilePath);
+		try {
+			Files.createSymbolicLink(tempFilePath, targetFilePath.toAbsolutePath());
+			Files.move(tempFilePath, linkFilePath, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException | RuntimeException e) {
+			deleteQuietly(tempFilePath, e);
+			throw e;
+		}
+	}
+	
+	@Nonnull
+	private static Path buildTempFilePath(@Nonnull Path filePath) {
+		return filePath.resolveSibling("." + filePath.getFileName() + "." + UUID.randomUUID() + TEMP_FILE_SUFFIX);
+	}
+	
+	private static void deleteQuietly(@Nonnull Path filePath, @Nonnull Exception failure) {
+		try {
+			Files.deleteIfExists(filePath);
+		} catch (IOException e) {
+			failure.addSuppressed(e);
+		}
+	}
+	
+}
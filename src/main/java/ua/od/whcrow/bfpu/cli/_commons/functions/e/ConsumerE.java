@@ -0,0 +1,9 @@
+package ua.od.whcrow.bfpu.cli._commons.functions.e;
+
+@FunctionalInterface
+public interface ConsumerE<T, E extends Throwable> {
+	
+	void accept(T t)
+			throws E;
+	
+}
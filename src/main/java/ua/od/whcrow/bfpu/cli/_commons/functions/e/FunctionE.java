@@ -0,0 +1,9 @@
+package ua.od.whcrow.bfpu.cli._commons.functions.e;
+
+@FunctionalInterface
+public interface FunctionE<T, R, E extends Throwable> {
+	
+	R apply(T t)
+			throws E;
+	
+}
@@ -2,11 +2,13 @@ package ua.od.whcrow.bfpu.cli.actions;
 
 import io.micrometer.common.util.StringUtils;
 import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
 import org.apache.commons.io.FilenameUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ua.od.whcrow.bfpu.cli.Action;
 import ua.od.whcrow.bfpu.cli.Setting;
+import ua.od.whcrow.bfpu.cli._commons.functions.e.ConsumerE;
 import ua.od.whcrow.bfpu.cli.exceptions.ActionRunException;
 
 import java.io.IOException;
@@ -15,52 +17,258 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.function.BiPredicate;
 import java.util.stream.Stream;
 
 public abstract class AbstractAction implements Action {
 	
+	private static final String STATE_DIR_NAME = ".bfpu";
+	private static final String JOURNAL_FILE_EXTENSION = ".journal";
+	private static final String LEASE_DIR_NAME = "leases";
+	
 	protected final Logger logger = LoggerFactory.getLogger(getClass());
+	private volatile ActionMetrics metrics;
+	private volatile TargetPlan targetPlan;
+	private volatile ProgressReporter progress;
 	
 	@Nonnull
 	protected Stream<Path> createPathStream(@Nonnull Setting setting)
 			throws ActionRunException {
+		return createFileStream(setting).map(SourceFile::path);
+	}
+	
+	@Nonnull
+	Stream<SourceFile> createFileStream(@Nonnull Setting setting) {
+		Path stateDirPath = getStateDirPath(setting).toAbsolutePath().normalize();
+		return ParallelFileWalker.walk(setting.getSource(), setting.isRecursive(), createFilePredicate(setting),
+				stateDirPath.startsWith(setting.getSource().toAbsolutePath().normalize()) ? stateDirPath : null,
+				setting.getWalkParallelism());
+	}
+	
+	// The destination dir inside the source one is excluded too, so the targets aren't processed as the new sources
+	@Nonnull
+	SourceWatcher createSourceWatcher(@Nonnull Setting setting)
+			throws IOException {
+		Path sourceDirPath = setting.getSource().toAbsolutePath().normalize();
+		Set<Path> excludedDirPaths = new HashSet<>();
+		for (Path dirPath : List.of(getStateDirPath(setting), setting.getDestination())) {
+			dirPath = dirPath.toAbsolutePath().normalize();
+			if (dirPath.startsWith(sourceDirPath) && !dirPath.equals(sourceDirPath)) {
+				excludedDirPaths.add(dirPath);
+			}
+		}
+		return new SourceWatcher(setting.getSource(), setting.isRecursive(), createFilePredicate(setting),
+				excludedDirPaths, setting.getWatchDebounce());
+	}
+	
+	// A shard takes the files which relative paths hash to its index, so the shards split the files whatever host they
+	// run on
+	@Nonnull
+	private static BiPredicate<Path,BasicFileAttributes> createFilePredicate(@Nonnull Setting setting) {
 		PathMatcher fileNameMatcher = StringUtils.isBlank(setting.getGlob())
 				? null : FileSystems.getDefault().getPathMatcher("glob:" + setting.getGlob());
 		BiPredicate<Path,BasicFileAttributes> filePredicate = fileNameMatcher == null
 				? (path, attr) -> attr.isRegularFile()
 				: (path, attr) -> attr.isRegularFile() && fileNameMatcher.matches(path.getFileName());
+		if (setting.getShardCount() == 1) {
+			return filePredicate;
+		}
+		return filePredicate.and((path, attr) -> Math.floorMod(getRelativeName(path, setting).hashCode(),
+				setting.getShardCount()) == setting.getShardIndex());
+	}
+	
+	// The same on any OS, as the separators are unified
+	@Nonnull
+	static String getRelativeName(@Nonnull Path sourceFilePath, @Nonnull Setting setting) {
+		return FilenameUtils.separatorsToUnix(setting.getSource().relativize(sourceFilePath).toString());
+	}
+	
+	@Override
+	public void run(@Nonnull Setting setting)
+			throws ActionRunException {
+		ActionPipeline.run(List.of(this), setting);
+	}
+	
+	@Nonnull
+	abstract ActionStage openStage(@Nonnull Setting setting)
+			throws ActionRunException;
+	
+	// The meters are registered once, so a racing second instance shares them
+	@Nonnull
+	ActionMetrics getMetrics() {
+		if (metrics == null) {
+			metrics = new ActionMetrics(getName());
+		}
+		return metrics;
+	}
+	
+	void processFiles(@Nonnull Stream<SourceFile> fileStream, @Nonnull Setting setting,
+			@Nonnull ConsumerE<SourceFile,ActionRunException> fileProcessor)
+			throws ActionRunException {
+		try (FileTaskExecutor executor = new FileTaskExecutor(getName(), setting.getParallelism(),
+				setting.isFailTolerant(), logger, getMetrics())) {
+			for (SourceFile file : (Iterable<SourceFile>) fileStream::iterator) {
+				if (!executor.submit(file, fileProcessor)) {
+					break;
+				}
+			}
+			executor.await();
+		}
+	}
+	
+	// Each run starts a new target plan and reports to its own progress
+	void startRun(@Nonnull ProgressReporter progress) {
+		targetPlan = new TargetPlan(getName());
+		this.progress = progress;
+	}
+	
+	// A run of the watch mode processes the files in batches, see TargetPlan.finishBatch()
+	void finishBatch() {
+		if (targetPlan != null) {
+			targetPlan.finishBatch();
+		}
+	}
+	
+	@Nonnull
+	ProgressReporter getProgress() {
+		if (progress == null) {
+			progress = new ProgressReporter(getName(), null, logger);
+		}
+		return progress;
+	}
+	
+	@Nonnull
+	private TargetPlan getTargetPlan() {
+		if (targetPlan == null) {
+			targetPlan = new TargetPlan(getName());
+		}
+		return targetPlan;
+	}
+	
+	void planTargets(@Nonnull List<SourceFile> files, @Nonnull Setting setting)
+			throws ActionRunException {
+		getTargetPlan().plan(files, sourceFilePath -> resolveTargetFilePath(sourceFilePath, setting),
+				setting.isFailTolerant(), logger);
+	}
+	
+	// The relative amount of work the file takes, the files are scheduled by it
+	long estimateWorkload(@Nonnull SourceFile file) {
+		return file.size();
+	}
+	
+	// Maps a source to its target without touching the file system
+	@Nonnull
+	protected Path resolveTargetFilePath(@Nonnull Path sourceFilePath, @Nonnull Setting setting)
+			throws ActionRunException {
+		return setting.getDestination().resolve(setting.getSource().relativize(sourceFilePath));
+	}
+	
+	// Fails if the target is shared with another source, the target dir exists once it returns
+	@Nonnull
+	protected Path buildTargetFilePath(@Nonnull Path sourceFilePath, @Nonnull Setting setting)
+			throws ActionRunException {
+		return getTargetPlan().getTarget(sourceFilePath,
+				filePath -> resolveTargetFilePath(filePath, setting));
+	}
+	
+	// The options the targets depend on, so the work done with the other ones isn't taken for done by the journal and
+	// the leases
+	@Nonnull
+	String getOutputOptions() {
+		return "";
+	}
+	
+	@Nullable
+	RunJournal openJournal(@Nonnull Setting setting)
+			throws ActionRunException {
+		if (!setting.isJournal()) {
+			return null;
+		}
+		Path journalFilePath = getStateFilePath(setting, getName() + JOURNAL_FILE_EXTENSION);
 		try {
-			return setting.isRecursive()
-					? Files.find(setting.getSource(), Integer.MAX_VALUE, filePredicate)
-					: Files.find(setting.getSource(), 1, filePredicate);
+			return new RunJournal(journalFilePath, RunJournal.fingerprint(getOutputOptions()));
 		} catch (IOException e) {
-			throw new ActionRunException(getName(), "Failed to find the files matching given setting", e);
+			throw new ActionRunException(getName(), "Failed to open the journal " + journalFilePath, e);
 		}
 	}
 	
-	@Nonnull
-	protected Path buildTargetFilePath(@Nonnull Path sourceDirPath, @Nonnull Path sourceFilePath,
-			@Nonnull Path destinationDirPath)
+	void closeJournal(@Nullable RunJournal journal)
+			throws ActionRunException {
+		if (journal == null) {
+			return;
+		}
+		try (journal) {
+			journal.compact();
+		} catch (IOException e) {
+			throw new ActionRunException(getName(), "Failed to update the journal", e);
+		}
+	}
+	
+	@Nullable
+	RunJournal.Item startJournalItem(@Nullable RunJournal journal, @Nonnull Path sourceFilePath,
+			@Nonnull Path targetFilePath)
 			throws ActionRunException {
-		Path fileRelPath = sourceDirPath.relativize(sourceFilePath);
-		Path targetFile = destinationDirPath.resolve(fileRelPath);
-		Path targetDirPath = targetFile.getParent();
-		if (Files.notExists(targetDirPath)) {
+		if (journal == null) {
+			return null;
+		}
+		try {
+			return journal.start(sourceFilePath, targetFilePath);
+		} catch (IOException e) {
+			throw new ActionRunException(getName(), "Failed to read the attributes of " + sourceFilePath, e);
+		}
+	}
+	
+	// Without the journal, an existing target is the only sign of the work done before
+	boolean isTargetDone(@Nullable RunJournal.Item journalItem, @Nonnull Path targetFilePath,
+			@Nonnull Setting setting)
+			throws ActionRunException {
+		boolean done;
+		if (journalItem == null) {
+			done = setting.getSkipOnExistingTarget() && Files.exists(targetFilePath);
+		} else {
 			try {
-				Files.createDirectories(targetDirPath);
+				done = journalItem.isDone();
 			} catch (IOException e) {
-				throw new ActionRunException(getName(), "Failed to create a target sub-dir/s " + targetDirPath
-						+ " for " + sourceFilePath, e);
+				throw new ActionRunException(getName(), "Failed to check the target " + targetFilePath, e);
 			}
 		}
-		return targetFile;
+		if (done) {
+			getMetrics().recordSkipped();
+		}
+		return done;
 	}
 	
-	@Nonnull
-	protected Path buildTargetFilePath(@Nonnull Path sourceFilePath, @Nonnull Setting setting)
+	void completeJournalItem(@Nullable RunJournal.Item journalItem, @Nonnull Path targetFilePath)
 			throws ActionRunException {
-		return buildTargetFilePath(setting.getSource(), sourceFilePath, setting.getDestination());
+		if (journalItem == null) {
+			return;
+		}
+		try {
+			journalItem.done();
+		} catch (IOException e) {
+			throw new ActionRunException(getName(), "Failed to journal the completion of " + targetFilePath, e);
+		}
+	}
+	
+	// The state files of a node aren't shared with the other processes writing to the same destination
+	@Nonnull
+	protected Path getStateFilePath(@Nonnull Setting setting, @Nonnull String fileName) {
+		Path stateDirPath = getStateDirPath(setting);
+		return (setting.getNode() == null ? stateDirPath : stateDirPath.resolve(setting.getNode())).resolve(fileName);
+	}
+	
+	// Shared by all the nodes
+	@Nonnull
+	static Path getLeaseDirPath(@Nonnull Setting setting, @Nonnull String name) {
+		return getStateDirPath(setting).resolve(LEASE_DIR_NAME).resolve(name);
+	}
+	
+	@Nonnull
+	private static Path getStateDirPath(@Nonnull Setting setting) {
+		return setting.getDestination().resolve(STATE_DIR_NAME);
 	}
 	
 	@Nonnull
@@ -0,0 +1,126 @@
+package ua.od.whcrow.bfpu.cli.actions;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.BaseUnits;
+import jakarta.annotation.Nonnull;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// The meters of an action are tagged with its name. They're registered in the global registry, which Spring Boot adds
+// its own registries (e.g. the Prometheus one) to, so the actions don't depend on the application context.
+class ActionMetrics {
+	
+	private static final String TAG_ACTION = "action";
+	private static final String TAG_OUTCOME = "outcome";
+	
+	private final MeterRegistry registry;
+	private final String actionName;
+	private final Counter processedFiles;
+	private final Counter skippedFiles;
+	private final Counter failedFiles;
+	private final Counter readBytes;
+	private final Counter writtenBytes;
+	private final Timer fileTimer;
+	
+	ActionMetrics(@Nonnull String actionName) {
+		this(Metrics.globalRegistry, actionName);
+	}
+	
+	ActionMetrics(@Nonnull MeterRegistry registry, @Nonnull String actionName) {
+		this.registry = registry;
+		this.actionName = actionName;
+		processedFiles = createFileCounter("processed");
+		skippedFiles = createFileCounter("skipped");
+		failedFiles = createFileCounter("failed");
+		readBytes = counter("bfpu.read", BaseUnits.BYTES);
+		writtenBytes = counter("bfpu.written", BaseUnits.BYTES);
+		fileTimer = Timer.builder("bfpu.file.duration")
+				.description("Time taken by a file")
+				.tag(TAG_ACTION, actionName)
+				.publishPercentileHistogram()
+				.register(registry);
+	}
+	
+	@Nonnull
+	Timer getFileTimer() {
+		return fileTimer;
+	}
+	
+	void recordProcessed(long readByteCount, long writtenByteCount) {
+		processedFiles.increment();
+		readBytes.increment(readByteCount);
+		writtenBytes.increment(writtenByteCount);
+	}
+	
+	// The target size is recorded as the written bytes
+	void recordProcessed(long readByteCount, @Nonnull Path targetFilePath) {
+		long writtenByteCount;
+		try {
+			writtenByteCount = Files.size(targetFilePath);
+		} catch (IOException e) {
+			writtenByteCount = 0;
+		}
+		recordProcessed(readByteCount, writtenByteCount);
+	}
+	
+	void recordSkipped() {
+		skippedFiles.increment();
+	}
+	
+	void recordFailed() {
+		failedFiles.increment();
+	}
+	
+	@Nonnull
+	Counter counter(@Nonnull String name, @Nonnull String baseUnit) {
+		return Counter.builder(name)
+				.tag(TAG_ACTION, actionName)
+				.baseUnit(baseUnit)
+				.register(registry);
+	}
+	
+	@Nonnull
+	DistributionSummary summary(@Nonnull String name, @Nonnull String baseUnit) {
+		return DistributionSummary.builder(name)
+				.tag(TAG_ACTION, actionName)
+				.baseUnit(baseUnit)
+				.register(registry);
+	}
+	
+	void report(@Nonnull Logger logger, long durationMillis) {
+		if (processedFiles.count() + skippedFiles.count() + failedFiles.count() == 0) {
+			return;
+		}
+		double durationSec = Math.max(durationMillis, 1) / 1000d;
+		logger.info("Action \"{}\" processed {} file/s ({} skipped, {} failed), read {} MB, written {} MB, "
+						+ "{} files/s and {} MB/s, {} ms per file in average", actionName,
+				(long) processedFiles.count(), (long) skippedFiles.count(), (long) failedFiles.count(),
+				format(readBytes.count() / 1e6), format(writtenBytes.count() / 1e6),
+				format(processedFiles.count() / durationSec),
+				format((readBytes.count() + writtenBytes.count()) / 1e6 / durationSec),
+				format(fileTimer.mean(TimeUnit.MILLISECONDS)));
+	}
+	
+	@Nonnull
+	private Counter createFileCounter(@Nonnull String outcome) {
+		return Counter.builder("bfpu.files")
+				.description("Files passed to an action by outcome")
+				.tag(TAG_ACTION, actionName)
+				.tag(TAG_OUTCOME, outcome)
+				.register(registry);
+	}
+	
+	@Nonnull
+	private static String format(double value) {
+		return String.format("%.2f", value);
+	}
+	
+}
@@ -0,0 +1,450 @@
+package ua.od.whcrow.bfpu.cli.actions;
+
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ua.od.whcrow.bfpu.cli.Action;
+import ua.od.whcrow.bfpu.cli.Setting;
+import ua.od.whcrow.bfpu.cli._commons.functions.e.ConsumerE;
+import ua.od.whcrow.bfpu.cli.exceptions.ActionRunException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public final class ActionPipeline {
+	
+	private static final Logger LOG = LoggerFactory.getLogger(ActionPipeline.class);
+	// The watches running, stopped once the application is shut down
+	private static final Set<SourceWatcher> WATCHERS = ConcurrentHashMap.newKeySet();
+	private static volatile boolean watchStopped;
+	
+	private final List<AbstractAction> actions;
+	private final String name;
+	
+	private ActionPipeline(@Nonnull List<AbstractAction> actions) {
+		this.actions = actions;
+		name = actions.stream().map(Action::getName).collect(Collectors.joining("+"));
+	}
+	
+	// Walks the source tree once and passes each file through the stages opened by the actions, preserving their order
+	public static void run(@Nonnull List<Action> actions, @Nonnull Setting setting)
+			throws ActionRunException {
+		List<AbstractAction> stageActions = new ArrayList<>();
+		for (Action action : actions) {
+			if (!(action instanceof AbstractAction stageAction)) {
+				throw new ActionRunException(action.getName(), "cannot be a part of a pipeline");
+			}
+			stageActions.add(stageAction);
+		}
+		if (!stageActions.isEmpty()) {
+			new ActionPipeline(stageActions).run(setting);
+		}
+	}
+	
+	// Stops the watches, so their pipelines finish once the files being processed are done.
+	// Returns whether any watch has been running.
+	public static boolean stopWatching() {
+		watchStopped = true;
+		boolean watching = false;
+		for (SourceWatcher watcher : WATCHERS) {
+			watching = true;
+			LOG.info("Stopping the watch of the source directory");
+			try {
+				watcher.close();
+			} catch (IOException e) {
+				LOG.warn("Failed to stop the watch of the source directory", e);
+			}
+		}
+		return watching;
+	}
+	
+	private void run(@Nonnull Setting setting)
+			throws ActionRunException {
+		List<MeteredStage> stages = new ArrayList<>();
+		ActionRunException failure = null;
+		long start = System.currentTimeMillis();
+		ProgressReporter progress = new ProgressReporter(name, setting.getProgressInterval(), LOG);
+		try {
+			for (AbstractAction action : actions) {
+				action.startRun(progress);
+				stages.add(new MeteredStage(action.openStage(setting), action));
+			}
+			checkStages(stages, setting);
+			if (setting.isWatch()) {
+				watch(stages, progress, setting);
+			} else {
+				try (Stream<SourceFile> fileStream = actions.get(0).createFileStream(setting)) {
+					run(fileStream, stages, progress, setting);
+				}
+			}
+		} catch (ActionRunException e) {
+			failure = e;
+		} catch (UncheckedIOException e) {
+			failure = new ActionRunException(name, "Failed to walk through the source directory", e.getCause());
+		}
+		try {
+			progress.close();
+			close(stages, failure);
+		} finally {
+			long duration = System.currentTimeMillis() - start;
+			for (AbstractAction action : actions) {
+				action.getMetrics().report(action.logger, duration);
+			}
+		}
+	}
+	
+	// The new files are passed in batches, so a stage comparing all the files would miss the ones of the other batches,
+	// as it would miss the ones of the other shards. The files are leased one by one, so a barrier stage would process
+	// all of them on each node.
+	private static void checkStages(@Nonnull List<MeteredStage> stages, @Nonnull Setting setting)
+			throws ActionRunException {
+		for (MeteredStage stage : stages) {
+			if (setting.isWatch() && stage.isWholeTree()) {
+				throw new ActionRunException(stage.action().getName(), "cannot run in the watch mode, as it must get "
+						+ "all the source files at once");
+			}
+			if (setting.getShardCount() > 1 && stage.isWholeTree()) {
+				throw new ActionRunException(stage.action().getName(), "cannot run in a shard, as it must get all the "
+						+ "source files at once");
+			}
+			if (setting.isLease() && stage.isBarrier()) {
+				throw new ActionRunException(stage.action().getName(), "cannot run with the leases, as it processes "
+						+ "the files all at once rather than one by one");
+			}
+		}
+	}
+	
+	// The files existing already are walked through once the watches are registered, so no file is missed, and then
+	// the new files are passed through the stages in batches as they become stable. The stages stay open until the
+	// application is shut down, which stops the walk and the watch and lets the files being processed finish.
+	private void watch(@Nonnull List<MeteredStage> stages, @Nonnull ProgressReporter progress, @Nonnull Setting setting)
+			throws ActionRunException {
+		AbstractAction firstAction = actions.get(0);
+		try {
+			SourceWatcher watcher = firstAction.createSourceWatcher(setting);
+			WATCHERS.add(watcher);
+			try {
+				if (watchStopped) {
+					watcher.close();
+				}
+				try (Stream<SourceFile> fileStream = firstAction.createFileStream(setting)) {
+					run(fileStream.takeWhile(file -> !watcher.isClosed()), stages, progress, setting);
+				}
+				actions.forEach(AbstractAction::finishBatch);
+				LOG.info("Watching {} for the new files, stable for {}", setting.getSource(),
+						setting.getWatchDebounce());
+				List<SourceFile> files;
+				while ((files = watcher.take()) != null) {
+					LOG.info("Processing {} new file/s", files.size());
+					run(files.stream(), stages, progress, setting);
+					actions.forEach(AbstractAction::finishBatch);
+				}
+				LOG.info("Stopped the watch of {}", setting.getSource());
+			} finally {
+				WATCHERS.remove(watcher);
+				watcher.close();
+			}
+		} catch (IOException e) {
+			throw new ActionRunException(name, "Failed to watch the source directory", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ActionRunException(name, "Interrupted while watching the source directory", e);
+		}
+	}
+	
+	private void run(@Nonnull Stream<SourceFile> fileStream, @Nonnull List<MeteredStage> stages,
+			@Nonnull ProgressReporter progress, @Nonnull Setting setting)
+			throws ActionRunException {
+		List<MeteredStage> fileStages = new ArrayList<>();
+		for (MeteredStage stage : stages) {
+			if (!stage.isBarrier()) {
+				fileStages.add(stage);
+				continue;
+			}
+			List<SourceFile> files = fileStages.isEmpty()
+					? fileStream.toList()
+					: process(fileStream, fileStages, progress, setting, true);
+			fileStages.clear();
+			fileStream = stage.filter(files).stream();
+		}
+		if (!fileStages.isEmpty()) {
+			process(fileStream, fileStages, progress, setting, false);
+		}
+	}
+	
+	// Consecutive per-file stages are fused, i.e. a worker passes a file through all of them at once.
+	// With the targets planned or the files scheduled, the files are collected first, so the stages check their targets
+	// and the files are sorted before any work starts.
+	@Nonnull
+	private List<SourceFile> process(@Nonnull Stream<SourceFile> fileStream, @Nonnull List<MeteredStage> fileStages,
+			@Nonnull ProgressReporter progress, @Nonnull Setting setting, boolean collectPassed)
+			throws ActionRunException {
+		progress.startFiles();
+		if (setting.isPlanTargets() || setting.getSchedule() != Setting.Schedule.ENCOUNTER) {
+			List<SourceFile> files = fileStream.toList();
+			if (setting.isPlanTargets()) {
+				for (MeteredStage stage : fileStages) {
+					stage.action().planTargets(files, setting);
+				}
+			}
+			fileStream = schedule(files, fileStages, setting.getSchedule()).stream();
+		}
+		Queue<SourceFile> passedFiles = new ConcurrentLinkedQueue<>();
+		List<ActionStage> fusedStages = List.copyOf(fileStages);
+		ConsumerE<SourceFile,ActionRunException> task = sourceFile -> {
+			try {
+				for (ActionStage stage : fusedStages) {
+					if (!stage.process(sourceFile)) {
+						return;
+					}
+				}
+				if (collectPassed) {
+					passedFiles.add(sourceFile);
+				}
+			} finally {
+				progress.fileDone(sourceFile);
+			}
+		};
+		try (WorkLeases leases = openLeases(fileStages, setting);
+				FileTaskExecutor executor = new FileTaskExecutor(name, setting.getParallelism(),
+						setting.isFailTolerant(), LOG)) {
+			List<SourceFile> takenFiles = new ArrayList<>();
+			boolean submitted = true;
+			for (SourceFile file : (Iterable<SourceFile>) fileStream::iterator) {
+				WorkLeases.State state = leases == null
+						? WorkLeases.State.CLAIMED : claim(leases, file, fileStages, progress, setting);
+				if (state == WorkLeases.State.TAKEN) {
+					takenFiles.add(file);
+					continue;
+				}
+				if (state == WorkLeases.State.CLAIMED) {
+					submitted = submit(executor, file, task, leases, progress, setting);
+					if (!submitted) {
+						break;
+					}
+				}
+			}
+			progress.allFilesFound();
+			if (submitted && !takenFiles.isEmpty()) {
+				processTakenFiles(takenFiles, fileStages, executor, task, leases, progress, setting);
+			}
+			executor.await();
+		}
+		return List.copyOf(passedFiles);
+	}
+	
+	// The files are leased by the consecutive per-file stages they're passed through together, with the options their
+	// targets depend on, so a file done with the other options is done anew
+	@Nullable
+	private WorkLeases openLeases(@Nonnull List<MeteredStage> fileStages, @Nonnull Setting setting)
+			throws ActionRunException {
+		if (!setting.isLease()) {
+			return null;
+		}
+		String options = fileStages.stream()
+				.map(stage -> stage.action().getOutputOptions())
+				.collect(Collectors.joining("\n"));
+		Path leaseDirPath = AbstractAction.getLeaseDirPath(setting, fileStages.stream()
+				.map(stage -> stage.action().getName())
+				.collect(Collectors.joining("+")) + "-" + RunJournal.fingerprint(options));
+		try {
+			return new WorkLeases(leaseDirPath, setting.getLeaseTimeout(), setting.getNode(), LOG);
+		} catch (IOException e) {
+			throw new ActionRunException(name, "Failed to open the leases " + leaseDirPath, e);
+		}
+	}
+	
+	// A file done before the leases were opened, e.g. by an earlier run, is done only while the targets of the stages
+	// exist, otherwise it's claimed again. A done file is skipped by all the stages.
+	@Nonnull
+	private WorkLeases.State claim(@Nonnull WorkLeases leases, @Nonnull SourceFile file,
+			@Nonnull List<MeteredStage> fileStages, @Nonnull ProgressReporter progress, @Nonnull Setting setting)
+			throws ActionRunException {
+		String key = WorkLeases.toKey(AbstractAction.getRelativeName(file.path(), setting), file);
+		WorkLeases.State state;
+		try {
+			state = leases.claim(key);
+			if (state == WorkLeases.State.DONE_BEFORE && !isTargetDone(file, fileStages, setting)) {
+				leases.reopen(key);
+				state = leases.claim(key);
+			}
+		} catch (IOException e) {
+			throw new ActionRunException(name, "Failed to lease " + file.path(), e);
+		}
+		if (state == WorkLeases.State.DONE || state == WorkLeases.State.DONE_BEFORE) {
+			LOG.info(state == WorkLeases.State.DONE
+					? "Skip {} because it's done by another node" : "Skip {} because its targets are already done",
+					file.path());
+			progress.fileFound(file);
+			progress.fileDone(file);
+			for (MeteredStage stage : fileStages) {
+				stage.action().getMetrics().recordSkipped();
+			}
+		}
+		return state;
+	}
+	
+	private static boolean isTargetDone(@Nonnull SourceFile file, @Nonnull List<MeteredStage> fileStages,
+			@Nonnull Setting setting)
+			throws ActionRunException {
+		for (MeteredStage stage : fileStages) {
+			if (Files.notExists(stage.action().resolveTargetFilePath(file.path(), setting))) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	// Returns false once the executor has stopped because of a failure
+	private boolean submit(@Nonnull FileTaskExecutor executor, @Nonnull SourceFile file,
+			@Nonnull ConsumerE<SourceFile,ActionRunException> task, @Nullable WorkLeases leases,
+			@Nonnull ProgressReporter progress, @Nonnull Setting setting)
+			throws ActionRunException {
+		progress.fileFound(file);
+		if (leases == null) {
+			return executor.submit(file, task);
+		}
+		String key = WorkLeases.toKey(AbstractAction.getRelativeName(file.path(), setting), file);
+		return executor.submit(file, sourceFile -> {
+			boolean done = false;
+			try {
+				task.accept(sourceFile);
+				done = true;
+			} finally {
+				try {
+					leases.finish(key, done);
+				} catch (IOException e) {
+					LOG.warn("Failed to finish the lease of {}", sourceFile.path(), e);
+				}
+			}
+		});
+	}
+	
+	// The files taken by the other nodes are checked until they're done, so an idle node takes over the files of a node
+	// which has stopped
+	private void processTakenFiles(@Nonnull List<SourceFile> takenFiles, @Nonnull List<MeteredStage> fileStages,
+			@Nonnull FileTaskExecutor executor, @Nonnull ConsumerE<SourceFile,ActionRunException> task,
+			@Nonnull WorkLeases leases, @Nonnull ProgressReporter progress, @Nonnull Setting setting)
+			throws ActionRunException {
+		LOG.info("Waiting for {} file/s taken by the other nodes", takenFiles.size());
+		while (!takenFiles.isEmpty()) {
+			try {
+				Thread.sleep(leases.getCheckInterval().toMillis());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ActionRunException(name, "Interrupted while waiting for the files taken by the other nodes",
+						e);
+			}
+			Iterator<SourceFile> iterator = takenFiles.iterator();
+			while (iterator.hasNext()) {
+				SourceFile file = iterator.next();
+				WorkLeases.State state = claim(leases, file, fileStages, progress, setting);
+				if (state == WorkLeases.State.TAKEN) {
+					continue;
+				}
+				iterator.remove();
+				if (state == WorkLeases.State.CLAIMED && !submit(executor, file, task, leases, progress, setting)) {
+					return;
+				}
+			}
+		}
+	}
+	
+	// The workloads of a file are compared in the order of the stages, e.g. by size and then by duration.
+	// They're estimated once per file and concurrently, as it may take probing the file.
+	@Nonnull
+	private static List<SourceFile> schedule(@Nonnull List<SourceFile> files, @Nonnull List<MeteredStage> fileStages,
+			@Nonnull Setting.Schedule schedule) {
+		if (schedule == Setting.Schedule.ENCOUNTER) {
+			return files;
+		}
+		long start = System.currentTimeMillis();
+		Map<SourceFile,long[]> workloads = files.parallelStream().collect(Collectors.toMap(Function.identity(),
+				file -> fileStages.stream().mapToLong(stage -> stage.action().estimateWorkload(file)).toArray(),
+				(workload1, workload2) -> workload1, IdentityHashMap::new));
+		Comparator<SourceFile> comparator = (file1, file2) -> Arrays.compare(workloads.get(file1), workloads.get(file2));
+		List<SourceFile> scheduledFiles = new ArrayList<>(files);
+		scheduledFiles.sort(schedule == Setting.Schedule.LARGEST_FIRST ? comparator.reversed() : comparator);
+		LOG.debug("Scheduled {} file/s {} in {} ms", files.size(), schedule, System.currentTimeMillis() - start);
+		return scheduledFiles;
+	}
+	
+	private static void close(@Nonnull List<MeteredStage> stages, @Nullable ActionRunException failure)
+			throws ActionRunException {
+		for (ActionStage stage : stages) {
+			try {
+				stage.close();
+			} catch (ActionRunException e) {
+				if (failure == null) {
+					failure = e;
+				} else {
+					failure.addSuppressed(e);
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+	
+	// Times each file passed to a per-file stage and counts the failures
+	private record MeteredStage(@Nonnull ActionStage stage, @Nonnull AbstractAction action) implements ActionStage {
+		
+		@Override
+		public boolean isBarrier() {
+			return stage.isBarrier();
+		}
+		
+		@Override
+		public boolean isWholeTree() {
+			return stage.isWholeTree();
+		}
+		
+		@Nonnull
+		@Override
+		public List<SourceFile> filter(@Nonnull List<SourceFile> files)
+				throws ActionRunException {
+			return stage.filter(files);
+		}
+		
+		@Override
+		public boolean process(@Nonnull SourceFile file)
+				throws ActionRunException {
+			Timer.Sample sample = Timer.start();
+			try {
+				return stage.process(file);
+			} catch (ActionRunException | RuntimeException e) {
+				action.getMetrics().recordFailed();
+				throw e;
+			} finally {
+				sample.stop(action.getMetrics().getFileTimer());
+			}
+		}
+		
+		@Override
+		public void close()
+				throws ActionRunException {
+			stage.close();
+		}
+		
+	}
+	
+}
@@ -0,0 +1,37 @@
+package ua.od.whcrow.bfpu.cli.actions;
+
+import jakarta.annotation.Nonnull;
+import ua.od.whcrow.bfpu.cli.exceptions.ActionRunException;
+
+import java.util.List;
+
+interface ActionStage extends AutoCloseable {
+	
+	// A barrier stage needs all the files at once, therefore it gets them via filter(...) instead of process(...)
+	default boolean isBarrier() {
+		return false;
+	}
+	
+	// A barrier stage which must get all the source files, e.g. to compare them, rather than any part of them
+	default boolean isWholeTree() {
+		return false;
+	}
+	
+	@Nonnull
+	default List<SourceFile> filter(@Nonnull List<SourceFile> files)
+			throws ActionRunException {
+		return files;
+	}
+	
+	// Returns whether the file must be passed to the next stage
+	default boolean process(@Nonnull SourceFile file)
+			throws ActionRunException {
+		return true;
+	}
+	
+	@Override
+	default void close()
+			throws ActionRunException {
+	}
+	
+}
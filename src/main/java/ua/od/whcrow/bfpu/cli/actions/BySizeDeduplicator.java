@@ -1,31 +1,408 @@
 package ua.od.whcrow.bfpu.cli.actions;
 
 import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.stereotype.Component;
 import ua.od.whcrow.bfpu.cli.Setting;
+import ua.od.whcrow.bfpu.cli._commons.AppendOnlyLog;
 import ua.od.whcrow.bfpu.cli._commons.ConditionalOnArrayPropertyContains;
+import ua.od.whcrow.bfpu.cli._commons.FileUtil;
+import ua.od.whcrow.bfpu.cli._commons.functions.e.FunctionE;
+import ua.od.whcrow.bfpu.cli.exceptions.ActionInitException;
+import ua.od.whcrow.bfpu.cli.exceptions.ActionPropertyException;
 import ua.od.whcrow.bfpu.cli.exceptions.ActionRunException;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
 @Component
 @ConditionalOnArrayPropertyContains(
 		name = BySizeDeduplicator.PN_ACTION_NAME,
 		containsValue = BySizeDeduplicator.ACTION_NAME
 )
+@EnableConfigurationProperties(BySizeDeduplicatorProperties.class)
 class BySizeDeduplicator extends AbstractAction {
 	
 	static final String ACTION_NAME = "deduplicate-by-size";
 	
+	private static final String PN_SAMPLE_SIZE = ACTION_NAME + ".sample-size";
+	private static final String HASH_INDEX_FILE_NAME = ACTION_NAME + ".index";
+	private static final String UNDO_LOG_FILE_NAME = ACTION_NAME + ".undo";
+	private static final String UNDO_LOG_SEPARATOR = "\t";
+	
+	private final BySizeDeduplicatorProperties properties;
+	private final ContentHasher hasher;
+	private final Comparator<SourceFile> keeperComparator;
+	
+	BySizeDeduplicator(@Nonnull BySizeDeduplicatorProperties properties)
+			throws ActionInitException {
+		long sampleSize = properties.sampleSize().toBytes();
+		if (sampleSize <= 0 || sampleSize > Integer.MAX_VALUE / 2) {
+			throw new ActionPropertyException(getName(), PN_SAMPLE_SIZE, "must be positive and less than 1GB");
+		}
+		this.properties = properties;
+		this.hasher = new ContentHasher((int) sampleSize);
+		this.keeperComparator = createKeeperComparator(properties.keeper());
+	}
+	
 	@Nonnull
 	@Override
 	public String getName() {
 		return ACTION_NAME;
 	}
 	
+	@Nonnull
 	@Override
-	public void run(@Nonnull Setting setting)
+	ActionStage openStage(@Nonnull Setting setting)
+			throws ActionRunException {
+		logger.info("Setting: {}", properties);
+		ContentHashIndex index = openHashIndex(setting);
+		AppendOnlyLog undoLog = openUndoLog(setting);
+		return new ActionStage() {
+			
+			@Override
+			public boolean isBarrier() {
+				return true;
+			}
+			
+			@Override
+			public boolean isWholeTree() {
+				return true;
+			}
+			
+			@Nonnull
+			@Override
+			public List<SourceFile> filter(@Nonnull List<SourceFile> files)
+					throws ActionRunException {
+				List<List<SourceFile>> duplicateGroups = findDuplicates(files, setting, index);
+				report(duplicateGroups);
+				resolve(duplicateGroups, setting, undoLog);
+				return removeRedundant(files, duplicateGroups);
+			}
+			
+			@Override
+			public void close()
+					throws ActionRunException {
+				try {
+					closeHashIndex(index);
+				} finally {
+					closeUndoLog(undoLog);
+				}
+			}
+			
+		};
+	}
+	
+	@Nullable
+	private ContentHashIndex openHashIndex(@Nonnull Setting setting)
+			throws ActionRunException {
+		if (!properties.hashIndex()) {
+			return null;
+		}
+		Path indexFilePath = getStateFilePath(setting, HASH_INDEX_FILE_NAME);
+		try {
+			return new ContentHashIndex(indexFilePath, hasher.getSampleSize());
+		} catch (IOException e) {
+			throw new ActionRunException(getName(), "Failed to open the hash index " + indexFilePath, e);
+		}
+	}
+	
+	private void closeHashIndex(@Nullable ContentHashIndex index)
+			throws ActionRunException {
+		if (index == null) {
+			return;
+		}
+		try (index) {
+			index.compact(properties.hashIndexPrune());
+		} catch (IOException e) {
+			throw new ActionRunException(getName(), "Failed to update the hash index", e);
+		}
+	}
+	
+	// The file/s to restore a resolved duplicate from are appended before it's resolved, see resolveDuplicate(...)
+	@Nullable
+	private AppendOnlyLog openUndoLog(@Nonnull Setting setting)
+			throws ActionRunException {
+		if (properties.resolution() == BySizeDeduplicatorProperties.Resolution.REPORT) {
+			return null;
+		}
+		Path undoLogFilePath = getStateFilePath(setting, UNDO_LOG_FILE_NAME);
+		try {
+			return new AppendOnlyLog(undoLogFilePath);
+		} catch (IOException e) {
+			throw new ActionRunException(getName(), "Failed to open the undo log " + undoLogFilePath, e);
+		}
+	}
+	
+	private void closeUndoLog(@Nullable AppendOnlyLog undoLog)
+			throws ActionRunException {
+		if (undoLog == null) {
+			return;
+		}
+		try {
+			undoLog.close();
+		} catch (IOException e) {
+			throw new ActionRunException(getName(), "Failed to close the undo log", e);
+		}
+	}
+	
+	@Nonnull
+	private List<List<SourceFile>> findDuplicates(@Nonnull List<SourceFile> files, @Nonnull Setting setting,
+			@Nullable ContentHashIndex index)
+			throws ActionRunException {
+		long start = System.currentTimeMillis();
+		Map<Long,List<SourceFile>> sizeGroups = files.stream()
+				.filter(file -> file.size() > 0)
+				.collect(Collectors.groupingBy(SourceFile::size));
+		List<List<SourceFile>> candidateGroups = sizeGroups.values().stream()
+				.filter(group -> group.size() > 1)
+				.toList();
+		logger.debug("Found {} file/s of {} distinct size/s, {} group/s of the same size", sizeGroups.values().stream()
+				.mapToInt(List::size).sum(), sizeGroups.size(), candidateGroups.size());
+		Map<Path,String> sampleHashes = hash(flatten(candidateGroups), setting, file -> hashSample(file, index));
+		candidateGroups = regroup(candidateGroups, sampleHashes);
+		logger.debug("{} group/s left after comparing the head/tail samples", candidateGroups.size());
+		List<List<SourceFile>> duplicateGroups = new ArrayList<>();
+		List<List<SourceFile>> partiallySampledGroups = new ArrayList<>();
+		for (List<SourceFile> group : candidateGroups) {
+			if (hasher.isSampleComplete(group.get(0).size())) {
+				duplicateGroups.add(group);
+			} else {
+				partiallySampledGroups.add(group);
+			}
+		}
+		Map<Path,String> contentHashes = hash(flatten(partiallySampledGroups), setting,
+				file -> hashContent(file, index));
+		duplicateGroups.addAll(regroup(partiallySampledGroups, contentHashes));
+		logger.debug("Duplicates search took {} ms", System.currentTimeMillis() - start);
+		return duplicateGroups;
+	}
+	
+	@Nonnull
+	private Map<Path,String> hash(@Nonnull List<SourceFile> files, @Nonnull Setting setting,
+			@Nonnull FunctionE<SourceFile,String,IOException> hashFunction)
+			throws ActionRunException {
+		Map<Path,String> hashes = new ConcurrentHashMap<>();
+		processFiles(files.stream(), setting, file -> {
+			try {
+				hashes.put(file.path(), hashFunction.apply(file));
+			} catch (IOException e) {
+				throw new ActionRunException(getName(), "Failed to read the file " + file.path(), e);
+			}
+		});
+		return hashes;
+	}
+	
+	@Nonnull
+	private String hashSample(@Nonnull SourceFile file, @Nullable ContentHashIndex index)
+			throws IOException {
+		String hash = index == null ? null : index.getSampleHash(file);
+		if (hash == null) {
+			hash = hasher.hashSample(file.path());
+			if (index != null) {
+				index.putSampleHash(file, hash);
+			}
+		}
+		return hash;
+	}
+	
+	@Nonnull
+	private String hashContent(@Nonnull SourceFile file, @Nullable ContentHashIndex index)
+			throws IOException {
+		String hash = index == null ? null : index.getContentHash(file);
+		if (hash == null) {
+			hash = hasher.hashContent(file.path());
+			if (index != null) {
+				index.putContentHash(file, hash);
+			}
+		}
+		return hash;
+	}
+	
+	@Nonnull
+	private static List<List<SourceFile>> regroup(@Nonnull Collection<List<SourceFile>> groups,
+			@Nonnull Map<Path,String> hashes) {
+		return groups.stream()
+				.flatMap(group -> group.stream()
+						.filter(file -> hashes.containsKey(file.path()))
+						.collect(Collectors.groupingBy(file -> hashes.get(file.path())))
+						.values().stream())
+				.filter(group -> group.size() > 1)
+				.toList();
+	}
+	
+	@Nonnull
+	private static List<SourceFile> flatten(@Nonnull Collection<List<SourceFile>> groups) {
+		return groups.stream().flatMap(List::stream).toList();
+	}
+	
+	// Ties are broken by the path, so the same keeper is chosen on each run
+	@Nonnull
+	private static Comparator<SourceFile> createKeeperComparator(@Nonnull BySizeDeduplicatorProperties.Keeper keeper) {
+		Comparator<SourceFile> pathComparator = Comparator.comparing(file -> file.path().toString());
+		return switch (keeper) {
+			case FIRST_PATH -> pathComparator;
+			case SHORTEST_PATH -> Comparator.<SourceFile>comparingInt(file -> file.path().toString().length())
+					.thenComparing(pathComparator);
+			case OLDEST -> Comparator.comparing((SourceFile file) -> file.attributes().lastModifiedTime())
+					.thenComparing(pathComparator);
+			case NEWEST -> Comparator.comparing((SourceFile file) -> file.attributes().lastModifiedTime())
+					.reversed()
+					.thenComparing(pathComparator);
+		};
+	}
+	
+	// Keeps a single file of each group of duplicates
+	@Nonnull
+	private List<SourceFile> removeRedundant(@Nonnull List<SourceFile> files,
+			@Nonnull List<List<SourceFile>> duplicateGroups) {
+		Set<Path> redundantFilePaths = duplicateGroups.stream()
+				.flatMap(group -> group.stream()
+						.sorted(keeperComparator)
+						.skip(1)
+						.map(SourceFile::path))
+				.collect(Collectors.toSet());
+		return files.stream()
+				.filter(file -> !redundantFilePaths.contains(file.path()))
+				.toList();
+	}
+	
+	private void report(@Nonnull List<List<SourceFile>> duplicateGroups) {
+		if (duplicateGroups.isEmpty()) {
+			logger.info("No duplicates found");
+			return;
+		}
+		BySizeDeduplicatorProperties.Resolution resolution = properties.resolution();
+		String keeping = resolution == BySizeDeduplicatorProperties.Resolution.REPORT
+				? "the first one would be kept"
+				: "the first one is kept, the rest are resolved by " + resolution;
+		long redundantFileCount = 0, redundantSize = 0;
+		for (List<SourceFile> group : duplicateGroups) {
+			redundantFileCount += group.size() - 1;
+			redundantSize += (group.size() - 1) * group.get(0).size();
+			logger.info("Duplicates of {} bytes, {}:\n{}", group.get(0).size(), keeping, group.stream()
+					.sorted(keeperComparator)
+					.map(file -> "\t" + file.path())
+					.collect(Collectors.joining("\n")));
+		}
+		logger.info("Found {} group/s of duplicates, {} redundant file/s of {} bytes in total", duplicateGroups.size(),
+				redundantFileCount, redundantSize);
+	}
+	
+	private void resolve(@Nonnull List<List<SourceFile>> duplicateGroups, @Nonnull Setting setting,
+			@Nullable AppendOnlyLog undoLog)
 			throws ActionRunException {
-		//TODO: implement
-		logger.warn("ACTION IS NOT IMPLEMENTED YET");
+		if (undoLog == null || duplicateGroups.isEmpty()) {
+			return;
+		}
+		Map<Path,SourceFile> keepers = new HashMap<>();
+		List<SourceFile> redundantFiles = new ArrayList<>();
+		for (List<SourceFile> group : duplicateGroups) {
+			List<SourceFile> sortedGroup = group.stream().sorted(keeperComparator).toList();
+			for (SourceFile file : sortedGroup.subList(1, sortedGroup.size())) {
+				keepers.put(file.path(), sortedGroup.get(0));
+				redundantFiles.add(file);
+			}
+		}
+		LongAdder resolvedFileCount = new LongAdder();
+		LongAdder resolvedSize = new LongAdder();
+		processFiles(redundantFiles.stream(), setting, file -> {
+			if (resolveDuplicate(file, keepers.get(file.path()), setting, undoLog)) {
+				resolvedFileCount.increment();
+				resolvedSize.add(file.size());
+			}
+		});
+		logger.info("Resolved {} redundant file/s of {} bytes in total by {}", resolvedFileCount.sum(),
+				resolvedSize.sum(), properties.resolution());
+	}
+	
+	// Each duplicate is deleted or replaced with a hardlink by a single rename/unlink, so it's either resolved or left
+	// intact. It's moved by a single rename too, unless the destination is on another file system, then it's copied
+	// under a temporary name, renamed and deleted, so a crash may leave both copies, but never a partial one.
+	// Its undo entry is appended beforehand, so a crash can't leave a resolved duplicate unrecorded.
+	// A duplicate or a keeper changed since it has been hashed isn't identical anymore, so it's skipped.
+	// Returns whether the duplicate has been resolved.
+	private boolean resolveDuplicate(@Nonnull SourceFile file, @Nonnull SourceFile keeper, @Nonnull Setting setting,
+			@Nonnull AppendOnlyLog undoLog)
+			throws ActionRunException {
+		Path filePath = file.path();
+		BySizeDeduplicatorProperties.Resolution resolution = properties.resolution();
+		try {
+			if (isChanged(file) || isChanged(keeper)) {
+				logger.warn("Skip the duplicate {} because it or {} has changed since it was hashed", filePath,
+						keeper.path());
+				return false;
+			}
+			switch (resolution) {
+				case MOVE -> {
+					Path targetFilePath = buildTargetFilePath(filePath, setting);
+					if (Files.exists(targetFilePath, LinkOption.NOFOLLOW_LINKS)) {
+						throw new ActionRunException(getName(), "Failed to move the duplicate " + filePath
+								+ " because target " + targetFilePath + " already exists");
+					}
+					appendUndoEntry(undoLog, file, targetFilePath);
+					FileUtil.move(filePath, targetFilePath);
+				}
+				case DELETE -> {
+					appendUndoEntry(undoLog, file, keeper.path());
+					Files.delete(filePath);
+				}
+				case HARDLINK -> {
+					if (Files.isSameFile(filePath, keeper.path())) {
+						logger.debug("Skip the duplicate {} because it's already a hardlink to {}", filePath,
+								keeper.path());
+						return false;
+					}
+					appendUndoEntry(undoLog, file, keeper.path());
+					FileUtil.link(filePath, keeper.path());
+				}
+				case REPORT -> {
+					return false;
+				}
+			}
+		} catch (IOException e) {
+			throw new ActionRunException(getName(), "Failed to resolve the duplicate " + filePath + " by "
+					+ resolution, e);
+		}
+		logger.debug("Resolved the duplicate {} of {} by {}", filePath, keeper.path(), resolution);
+		return true;
+	}
+	
+	private static boolean isChanged(@Nonnull SourceFile file)
+			throws IOException {
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(file.path(), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		} catch (NoSuchFileException e) {
+			return true;
+		}
+		return attributes.size() != file.size()
+				|| !attributes.lastModifiedTime().equals(file.attributes().lastModifiedTime());
+	}
+	
+	// <resolution> <modification time in ms> <path to restore the file from> <path of the file>
+	// A moved file is restored by moving it back, a deleted or hardlinked one by copying the keeper
+	private void appendUndoEntry(@Nonnull AppendOnlyLog undoLog, @Nonnull SourceFile file,
+			@Nonnull Path restoreFromFilePath)
+			throws IOException {
+		undoLog.append(String.join(UNDO_LOG_SEPARATOR, properties.resolution().name(),
+				String.valueOf(file.attributes().lastModifiedTime().toMillis()),
+				restoreFromFilePath.toAbsolutePath().toString(), file.path().toAbsolutePath().toString()));
 	}
 	
 }
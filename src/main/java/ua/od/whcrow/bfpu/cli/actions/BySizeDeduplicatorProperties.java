@@ -0,0 +1,42 @@
+package ua.od.whcrow.bfpu.cli.actions;
+
+import jakarta.annotation.Nonnull;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+import org.springframework.util.unit.DataSize;
+
+@ConfigurationProperties(BySizeDeduplicator.ACTION_NAME)
+record BySizeDeduplicatorProperties(
+		@DefaultValue(value = "64KB")
+		DataSize sampleSize,
+		boolean hashIndex,
+		boolean hashIndexPrune,
+		@DefaultValue(value = "REPORT")
+		Resolution resolution,
+		@DefaultValue(value = "FIRST_PATH")
+		Keeper keeper
+) {
+	
+	@Nonnull
+	@Override
+	public String toString() {
+		return ToStringBuilder.reflectionToString(this, ToStringStyle.NO_CLASS_NAME_STYLE);
+	}
+	
+	enum Resolution {
+		REPORT,
+		MOVE,
+		DELETE,
+		HARDLINK
+	}
+	
+	enum Keeper {
+		FIRST_PATH,
+		SHORTEST_PATH,
+		OLDEST,
+		NEWEST
+	}
+	
+}
@@ -1,21 +1,30 @@
 package ua.od.whcrow.bfpu.cli.actions;
 
 import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.logging.LogLevel;
 import org.springframework.stereotype.Component;
 import ua.od.whcrow.bfpu.cli.Setting;
+import ua.od.whcrow.bfpu.cli._commons.CommandLineUtil;
 import ua.od.whcrow.bfpu.cli._commons.ConditionalOnArrayPropertyContains;
 import ua.od.whcrow.bfpu.cli.exceptions.ActionInitException;
 import ua.od.whcrow.bfpu.cli.exceptions.ActionPropertyException;
 import ua.od.whcrow.bfpu.cli.exceptions.ActionRunException;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.stream.Stream;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 @Component
 @ConditionalOnArrayPropertyContains(
@@ -29,23 +38,84 @@ class CommandLineAction extends AbstractAction {
 	private static final String PN_COMMAND = ACTION_NAME + ".command";
 	private static final String PN_OUTPUT_LOG_LEVEL = ACTION_NAME + ".output-log-level";
 	private static final String PN_IGNORE_EXIT_CODE = ACTION_NAME + ".ignore-exit-code";
+	private static final String PN_TIMEOUT = ACTION_NAME + ".timeout";
+	private static final String PN_BATCH_SIZE = ACTION_NAME + ".batch-size";
+	private static final String PN_BATCH_MAX_LENGTH = ACTION_NAME + ".batch-max-length";
 	
-	private static final String OUTPUT_LOG_MESSAGE = "Command for {} outputs:\n{}";
+	private static final String SOURCE_PLACEHOLDER = "%source%";
+	private static final String TARGET_PLACEHOLDER = "%target%";
+	private static final String LIST_PLACEHOLDER = "%list%";
+	private static final String LIST_SEPARATOR = "\t";
 	
 	private final String commandFormat;
+	private final List<String> commandArgFormats;
 	private final LogLevel outputLogLevel;
 	private final boolean ignoreExitCode;
+	private final Duration timeout;
+	private final Integer batchSize;
+	private final int batchMaxLength;
+	private final boolean listed;
+	// Span of the arguments repeated for each file of a batch, unless the files are listed in a file
+	private final int repeatedArgsStart;
+	private final int repeatedArgsEnd;
 	
 	CommandLineAction(@Value("${" + PN_COMMAND + "}") String command,
 			@Value("${" + PN_OUTPUT_LOG_LEVEL + ":OFF}") LogLevel outputLogLevel,
-			@Value("${" + PN_IGNORE_EXIT_CODE + ":false}") boolean ignoreExitCode)
+			@Value("${" + PN_IGNORE_EXIT_CODE + ":false}") boolean ignoreExitCode,
+			@Value("${" + PN_TIMEOUT + ":#{null}}") Duration timeout,
+			@Value("${" + PN_BATCH_SIZE + ":#{null}}") Integer batchSize,
+			@Value("${" + PN_BATCH_MAX_LENGTH + ":32000}") int batchMaxLength)
 			throws ActionInitException {
 		if (command == null) {
 			throw new ActionPropertyException(getName(), PN_COMMAND, "not specified");
 		}
+		// Split before the placeholders are replaced, so a path with whitespaces stays a single argument
+		try {
+			commandArgFormats = CommandLineUtil.split(command);
+		} catch (IllegalArgumentException e) {
+			throw new ActionPropertyException(getName(), PN_COMMAND, e.getMessage(), e);
+		}
+		if (commandArgFormats.isEmpty()) {
+			throw new ActionPropertyException(getName(), PN_COMMAND, "cannot be blank");
+		}
+		if (timeout != null && (timeout.isNegative() || timeout.isZero())) {
+			throw new ActionPropertyException(getName(), PN_TIMEOUT, "must be positive");
+		}
+		if (batchSize != null && batchSize <= 0) {
+			throw new ActionPropertyException(getName(), PN_BATCH_SIZE, "must be positive");
+		}
+		if (batchMaxLength <= 0) {
+			throw new ActionPropertyException(getName(), PN_BATCH_MAX_LENGTH, "must be positive");
+		}
+		int start = -1, end = -1;
+		for (int i = 0; i < commandArgFormats.size(); i++) {
+			if (commandArgFormats.get(i).contains(SOURCE_PLACEHOLDER)
+					|| commandArgFormats.get(i).contains(TARGET_PLACEHOLDER)) {
+				start = start < 0 ? i : start;
+				end = i + 1;
+			}
+		}
+		listed = commandArgFormats.stream().anyMatch(arg -> arg.contains(LIST_PLACEHOLDER));
+		if (listed && batchSize == null) {
+			throw new ActionPropertyException(getName(), PN_COMMAND, "placeholder " + LIST_PLACEHOLDER + " requires "
+					+ PN_BATCH_SIZE);
+		}
+		if (listed && start >= 0) {
+			throw new ActionPropertyException(getName(), PN_COMMAND, "placeholder " + LIST_PLACEHOLDER
+					+ " cannot be combined with " + SOURCE_PLACEHOLDER + " and " + TARGET_PLACEHOLDER);
+		}
+		if (batchSize != null && !listed && start < 0) {
+			throw new ActionPropertyException(getName(), PN_COMMAND, "placeholder " + SOURCE_PLACEHOLDER + ", "
+					+ TARGET_PLACEHOLDER + " or " + LIST_PLACEHOLDER + " is required by " + PN_BATCH_SIZE);
+		}
 		this.commandFormat = command;
 		this.outputLogLevel = outputLogLevel;
 		this.ignoreExitCode = ignoreExitCode;
+		this.timeout = timeout;
+		this.batchSize = batchSize;
+		this.batchMaxLength = batchMaxLength;
+		repeatedArgsStart = start;
+		repeatedArgsEnd = end;
 	}
 	
 	@Nonnull
@@ -54,73 +124,312 @@ class CommandLineAction extends AbstractAction {
 		return ACTION_NAME;
 	}
 	
+	@Nonnull
 	@Override
-	public void run(@Nonnull Setting setting)
+	String getOutputOptions() {
+		return commandFormat + ignoreExitCode;
+	}
+	
+	@Nonnull
+	@Override
+	ActionStage openStage(@Nonnull Setting setting)
 			throws ActionRunException {
-		try (Stream<Path> pathStream = createPathStream(setting)) {
-			for (Path sourceFilePath : (Iterable<Path>) pathStream::iterator) {
-				processFile(sourceFilePath, setting);
+		RunJournal journal = openJournal(setting);
+		CommandRunner runner = new CommandRunner(getName(), logger, outputLogLevel, timeout);
+		return new ActionStage() {
+			
+			// A batch gets files from all over the source directory, so all of them are needed at once
+			@Override
+			public boolean isBarrier() {
+				return batchSize != null;
 			}
-		}
+			
+			@Nonnull
+			@Override
+			public List<SourceFile> filter(@Nonnull List<SourceFile> files)
+					throws ActionRunException {
+				return processBatches(files, setting, journal, runner);
+			}
+			
+			@Override
+			public boolean process(@Nonnull SourceFile file)
+					throws ActionRunException {
+				processFile(file, setting, journal, runner);
+				return true;
+			}
+			
+			@Override
+			public void close()
+					throws ActionRunException {
+				runner.close();
+				closeJournal(journal);
+			}
+			
+		};
 	}
 	
-	private void processFile(@Nonnull Path sourceFilePath, @Nonnull Setting setting)
+	private void processFile(@Nonnull SourceFile file, @Nonnull Setting setting, @Nullable RunJournal journal,
+			@Nonnull CommandRunner runner)
 			throws ActionRunException {
+		Path sourceFilePath = file.path();
 		Path targetFilePath = buildTargetFilePath(sourceFilePath, setting);
-		if (setting.getSkipOnExistingTarget() && Files.exists(targetFilePath)) {
-			logger.info("Skip a command execution for {} because target {} already exists", sourceFilePath,
+		RunJournal.Item journalItem = startJournalItem(journal, sourceFilePath, targetFilePath);
+		if (isTargetDone(journalItem, targetFilePath, setting)) {
+			logger.info("Skip a command execution for {} because target {} is already done", sourceFilePath,
 					targetFilePath);
 			return;
 		}
 		try {
-			execCommand(sourceFilePath, targetFilePath);
-		} catch (IOException | InterruptedException e) {
-			String message = "Failed to execute a command for " + sourceFilePath;
-			if (setting.isFailTolerant()) {
-				logger.warn(message, e);
-				return;
-			}
-			throw new ActionRunException(getName(), message, e);
+			execCommand(sourceFilePath, targetFilePath, runner);
+			completeJournalItem(journalItem, targetFilePath);
+			getMetrics().recordProcessed(file.size(), targetFilePath);
+		} catch (IOException e) {
+			throw new ActionRunException(getName(), "Failed to execute a command for " + sourceFilePath, e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ActionRunException(getName(), "Interrupted a command execution for " + sourceFilePath, e);
 		}
 	}
 	
-	private void execCommand(@Nonnull Path sourceFilePath, @Nonnull Path targetFilePath)
+	private void execCommand(@Nonnull Path sourceFilePath, @Nonnull Path targetFilePath, @Nonnull CommandRunner runner)
 			throws IOException, InterruptedException, ActionRunException {
-		long start = System.currentTimeMillis();
-		String commandLine = commandFormat
-				.replace("%source%", sourceFilePath.toAbsolutePath().toString())
-				.replace("%target%", targetFilePath.toAbsolutePath().toString());
-		logger.debug("Running a command: {}", commandLine);
-		// TODO: implement more sophisticated splitter for command
-		Process process = new ProcessBuilder(commandLine.split("\\s+"))
-				.redirectErrorStream(true)
-				.start();
-		handleOutput(process, sourceFilePath.toString());
-		int exitCode = process.waitFor();
-		if (exitCode == 0 || ignoreExitCode) {
-			logger.info("Command run for {} took {} ms", sourceFilePath, System.currentTimeMillis() - start);
+		String source = sourceFilePath.toAbsolutePath().toString();
+		String target = targetFilePath.toAbsolutePath().toString();
+		List<String> command = commandArgFormats.stream()
+				.map(arg -> arg.replace(SOURCE_PLACEHOLDER, source).replace(TARGET_PLACEHOLDER, target))
+				.toList();
+		CommandRunner.Result result = runner.run(command, sourceFilePath.toString());
+		if (result.exitCode() == 0 || ignoreExitCode) {
+			logger.info("Command run for {} took {} ms", sourceFilePath, result.wallTime());
 			return;
 		}
-		throw new ActionRunException(getName(), "Command run for " + sourceFilePath + " exits with code " + exitCode);
+		throw new ActionRunException(getName(), "Command run for " + sourceFilePath + " exits with code "
+				+ result.exitCode());
+	}
+	
+	// Returns the files processed successfully, the failures are reported to the executor file by file
+	@Nonnull
+	private List<SourceFile> processBatches(@Nonnull List<SourceFile> files, @Nonnull Setting setting,
+			@Nullable RunJournal journal, @Nonnull CommandRunner runner)
+			throws ActionRunException {
+		Queue<SourceFile> passedFiles = new ConcurrentLinkedQueue<>();
+		int fixedLength = getArgsLength(commandArgFormats) - (repeatedArgsStart < 0 ? 0
+				: getArgsLength(commandArgFormats.subList(repeatedArgsStart, repeatedArgsEnd)));
+		try (FileTaskExecutor executor = new FileTaskExecutor(getName(), setting.getParallelism(),
+				setting.isFailTolerant(), logger, getMetrics())) {
+			List<BatchItem> batch = new ArrayList<>();
+			int batchLength = fixedLength;
+			for (SourceFile file : files) {
+				BatchItem item;
+				try {
+					item = startBatchItem(file, setting, journal);
+				} catch (ActionRunException e) {
+					executor.fail(file.path(), e);
+					continue;
+				}
+				if (item == null) {
+					passedFiles.add(file);
+					continue;
+				}
+				int itemLength = getArgsLength(item.args());
+				if (!batch.isEmpty() && (batch.size() == batchSize || batchLength + itemLength > batchMaxLength)) {
+					if (!submitBatch(batch, executor, runner, passedFiles)) {
+						batch = List.of();
+						break;
+					}
+					batch = new ArrayList<>();
+					batchLength = fixedLength;
+				}
+				batch.add(item);
+				batchLength += itemLength;
+			}
+			if (!batch.isEmpty()) {
+				submitBatch(batch, executor, runner, passedFiles);
+			}
+			executor.await();
+		}
+		return List.copyOf(passedFiles);
+	}
+	
+	@Nullable
+	private BatchItem startBatchItem(@Nonnull SourceFile file, @Nonnull Setting setting, @Nullable RunJournal journal)
+			throws ActionRunException {
+		Path targetFilePath = buildTargetFilePath(file.path(), setting);
+		RunJournal.Item journalItem = startJournalItem(journal, file.path(), targetFilePath);
+		if (isTargetDone(journalItem, targetFilePath, setting)) {
+			logger.info("Skip a command execution for {} because target {} is already done", file.path(),
+					targetFilePath);
+			return null;
+		}
+		String source = file.path().toAbsolutePath().toString();
+		String target = targetFilePath.toAbsolutePath().toString();
+		List<String> args = repeatedArgsStart < 0 ? List.of()
+				: commandArgFormats.subList(repeatedArgsStart, repeatedArgsEnd).stream()
+				.map(arg -> arg.replace(SOURCE_PLACEHOLDER, source).replace(TARGET_PLACEHOLDER, target))
+				.toList();
+		return new BatchItem(file, source, targetFilePath, journalItem, args);
+	}
+	
+	private boolean submitBatch(@Nonnull List<BatchItem> batch, @Nonnull FileTaskExecutor executor,
+			@Nonnull CommandRunner runner, @Nonnull Queue<SourceFile> passedFiles)
+			throws ActionRunException {
+		// The batch reports the failures of its files itself, so the task never fails as a whole
+		return executor.submit(batch.get(0).file(), ignored -> {
+			for (BatchItem item : execBatch(batch, executor, runner)) {
+				try {
+					completeJournalItem(item.journalItem(), item.targetFilePath());
+					getMetrics().recordProcessed(item.file().size(), item.targetFilePath());
+					passedFiles.add(item.file());
+				} catch (ActionRunException e) {
+					executor.fail(item.file().path(), e);
+				}
+			}
+		});
+	}
+	
+	// Returns the items processed successfully. If the command fails, the files it mentions in the error output are
+	// treated as failed, or all the files of the batch if it doesn't mention any. The files it doesn't mention pass only
+	// if their targets have been written, as the command may have stopped before it reached them. A target counts as
+	// written if its modification time, size or file key (the inode, where supported) differ from the ones before
+	// the run. A target rewritten in place to the same size within the time resolution of the file system, e.g. 2 s
+	// on FAT or on some network shares, can't be told from an untouched one and fails the file.
+	@Nonnull
+	private List<BatchItem> execBatch(@Nonnull List<BatchItem> batch, @Nonnull FileTaskExecutor executor,
+			@Nonnull CommandRunner runner) {
+		String subject = "a batch of " + batch.size() + " file/s starting with " + batch.get(0).file().path();
+		Map<String,BatchItem> itemsBySource = new HashMap<>();
+		batch.forEach(item -> itemsBySource.put(item.source(), item));
+		Map<BatchItem,String> reportedFailures = new ConcurrentHashMap<>();
+		Map<BatchItem,TargetState> targetStates = new HashMap<>();
+		batch.forEach(item -> targetStates.put(item, TargetState.of(item.targetFilePath())));
+		Path listFilePath = null;
+		try {
+			List<String> command;
+			if (listed) {
+				listFilePath = writeListFile(batch);
+				String list = listFilePath.toAbsolutePath().toString();
+				command = commandArgFormats.stream().map(arg -> arg.replace(LIST_PLACEHOLDER, list)).toList();
+			} else {
+				command = new ArrayList<>(commandArgFormats.subList(0, repeatedArgsStart));
+				batch.forEach(item -> command.addAll(item.args()));
+				command.addAll(commandArgFormats.subList(repeatedArgsEnd, commandArgFormats.size()));
+			}
+			CommandRunner.Result result = runner.run(command, subject, line -> itemsBySource.forEach((source, item) -> {
+				if (mentions(line, source)) {
+					reportedFailures.putIfAbsent(item, line);
+				}
+			}));
+			if (result.exitCode() == 0 || ignoreExitCode) {
+				logger.info("Command run for {} took {} ms", subject, result.wallTime());
+				return batch;
+			}
+			if (reportedFailures.isEmpty()) {
+				failBatch(batch, executor, new ActionRunException(getName(), "Command run for " + subject
+						+ " exits with code " + result.exitCode()));
+				return List.of();
+			}
+			reportedFailures.forEach((item, line) -> executor.fail(item.file().path(), new ActionRunException(getName(),
+					"Command run for " + item.file().path() + " within a batch exits with code " + result.exitCode()
+							+ " reporting: " + line)));
+			List<BatchItem> passedItems = new ArrayList<>();
+			for (BatchItem item : batch) {
+				if (reportedFailures.containsKey(item)) {
+					continue;
+				}
+				TargetState targetState = TargetState.of(item.targetFilePath());
+				if (targetState != null && !targetState.equals(targetStates.get(item))) {
+					passedItems.add(item);
+				} else {
+					executor.fail(item.file().path(), new ActionRunException(getName(), "Command run for "
+							+ item.file().path() + " within a batch exits with code " + result.exitCode()
+							+ " without writing target " + item.targetFilePath()));
+				}
+			}
+			return passedItems;
+		} catch (IOException e) {
+			failBatch(batch, executor, new ActionRunException(getName(), "Failed to execute a command for " + subject,
+					e));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			failBatch(batch, executor, new ActionRunException(getName(), "Interrupted a command execution for "
+					+ subject, e));
+		} catch (ActionRunException e) {
+			failBatch(batch, executor, e);
+		} finally {
+			deleteListFile(listFilePath);
+		}
+		return List.of();
 	}
 	
-	private void handleOutput(@Nonnull Process process, @Nonnull String sourceFile)
+	// The source must be a whole token of the line, e.g. "/src/clip.avi" isn't mentioned by "/src/clip.avi.part: error"
+	static boolean mentions(@Nonnull String line, @Nonnull String source) {
+		for (int start = line.indexOf(source); start >= 0; start = line.indexOf(source, start + 1)) {
+			int end = start + source.length();
+			if (start > 0 && isPathChar(line.charAt(start - 1))) {
+				continue;
+			}
+			if (end == line.length()) {
+				return true;
+			}
+			// A dot followed by a space or the line end finishes a sentence rather than continues the file name
+			boolean extended = isPathChar(line.charAt(end))
+					|| line.charAt(end) == '.' && end + 1 < line.length() && isPathChar(line.charAt(end + 1));
+			if (!extended) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private static boolean isPathChar(char c) {
+		return Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '/' || c == '\\';
+	}
+	
+	@Nonnull
+	private Path writeListFile(@Nonnull List<BatchItem> batch)
 			throws IOException {
-		if (outputLogLevel == LogLevel.OFF) {
+		Path listFilePath = Files.createTempFile(getName() + "-", ".list");
+		Files.write(listFilePath, batch.stream()
+				.map(item -> item.source() + LIST_SEPARATOR + item.targetFilePath().toAbsolutePath())
+				.toList());
+		return listFilePath;
+	}
+	
+	private void deleteListFile(@Nullable Path listFilePath) {
+		if (listFilePath == null) {
 			return;
 		}
-		try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-			String line;
-			while ((line = reader.readLine()) != null) {
-				switch (outputLogLevel) {
-					case TRACE -> logger.trace(OUTPUT_LOG_MESSAGE, sourceFile, line);
-					case DEBUG -> logger.debug(OUTPUT_LOG_MESSAGE, sourceFile, line);
-					case INFO -> logger.info(OUTPUT_LOG_MESSAGE, sourceFile, line);
-					case WARN -> logger.warn(OUTPUT_LOG_MESSAGE, sourceFile, line);
-					case ERROR, FATAL -> logger.error(OUTPUT_LOG_MESSAGE, sourceFile, line);
-				}
+		try {
+			Files.deleteIfExists(listFilePath);
+		} catch (IOException e) {
+			logger.warn("Failed to delete the list file {}", listFilePath, e);
+		}
+	}
+	
+	private static void failBatch(@Nonnull List<BatchItem> batch, @Nonnull FileTaskExecutor executor,
+			@Nonnull ActionRunException exception) {
+		batch.forEach(item -> executor.fail(item.file().path(), exception));
+	}
+	
+	private static int getArgsLength(@Nonnull List<String> args) {
+		return args.stream().mapToInt(arg -> arg.length() + 1).sum();
+	}
+	
+	private record BatchItem(@Nonnull SourceFile file, @Nonnull String source, @Nonnull Path targetFilePath,
+			@Nullable RunJournal.Item journalItem, @Nonnull List<String> args) {}
+	
+	private record TargetState(@Nonnull FileTime modifiedTime, long size, @Nullable Object fileKey) {
+		
+		@Nullable
+		static TargetState of(@Nonnull Path filePath) {
+			try {
+				BasicFileAttributes attributes = Files.readAttributes(filePath, BasicFileAttributes.class);
+				return new TargetState(attributes.lastModifiedTime(), attributes.size(), attributes.fileKey());
+			} catch (IOException e) {
+				return null;
 			}
 		}
+		
 	}
 	
 }
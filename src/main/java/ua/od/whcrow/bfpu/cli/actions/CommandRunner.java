@@ -0,0 +1,174 @@
+package ua.od.whcrow.bfpu.cli.actions;
+
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+import org.slf4j.Logger;
+import org.springframework.boot.logging.LogLevel;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import ua.od.whcrow.bfpu.cli.exceptions.ActionRunException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+// Runs the commands from any number of threads at once. The output of each process is drained on a separate thread,
+// even if it isn't logged, so a chatty command never blocks on a full pipe.
+class CommandRunner implements AutoCloseable {
+	
+	private static final String OUTPUT_LOG_MESSAGE = "Command for {} outputs:\n{}";
+	private static final long OUTPUT_WAIT_MILLIS = 1000;
+	
+	private final String actionName;
+	private final Logger logger;
+	private final LogLevel outputLogLevel;
+	private final Duration timeout;
+	private final ExecutorService outputDrainer;
+	private final LongAdder runCount = new LongAdder();
+	private final LongAdder totalWallTime = new LongAdder();
+	private final LongAccumulator maxWallTime = new LongAccumulator(Math::max, 0);
+	
+	CommandRunner(@Nonnull String actionName, @Nonnull Logger logger, @Nonnull LogLevel outputLogLevel,
+			@Nullable Duration timeout) {
+		this.actionName = actionName;
+		this.logger = logger;
+		this.outputLogLevel = outputLogLevel;
+		this.timeout = timeout;
+		// Platform threads, since the virtual ones aren't available on Java 17
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory(actionName + "-output-");
+		threadFactory.setDaemon(true);
+		outputDrainer = Executors.newCachedThreadPool(threadFactory);
+	}
+	
+	@Nonnull
+	Result run(@Nonnull List<String> command, @Nonnull String subject)
+			throws IOException, InterruptedException, ActionRunException {
+		return run(command, subject, null);
+	}
+	
+	// The error output is kept apart from the standard one and passed to the listener line by line if it's given
+	@Nonnull
+	Result run(@Nonnull List<String> command, @Nonnull String subject, @Nullable Consumer<String> errorListener)
+			throws IOException, InterruptedException, ActionRunException {
+		logger.debug("Running a command: {}", command);
+		long start = System.nanoTime();
+		Process process = new ProcessBuilder(command)
+				.redirectErrorStream(errorListener == null)
+				.start();
+		Future<?> output = outputDrainer.submit(() -> drainOutput(process.getInputStream(), subject, null));
+		Future<?> errorOutput = errorListener == null ? null
+				: outputDrainer.submit(() -> drainOutput(process.getErrorStream(), subject, errorListener));
+		boolean exited = false;
+		long wallTime;
+		try {
+			if (timeout == null) {
+				process.waitFor();
+				exited = true;
+			} else {
+				exited = process.waitFor(timeout.toMillis(), TimeUnit.MILLISECONDS);
+			}
+		} finally {
+			if (!exited) {
+				kill(process);
+			}
+			wallTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			runCount.increment();
+			totalWallTime.add(wallTime);
+			maxWallTime.accumulate(wallTime);
+			awaitOutput(output, process.getInputStream(), subject);
+			if (errorOutput != null) {
+				awaitOutput(errorOutput, process.getErrorStream(), subject);
+			}
+		}
+		if (!exited) {
+			throw new ActionRunException(actionName, "Command run for " + subject + " is killed after " + wallTime
+					+ " ms because it exceeds the timeout of " + timeout.toMillis() + " ms");
+		}
+		return new Result(process.exitValue(), wallTime);
+	}
+	
+	@Override
+	public void close() {
+		outputDrainer.shutdownNow();
+		if (runCount.sum() > 0) {
+			logger.info("Ran {} command/s taking {} ms of wall time in total, the longest one took {} ms",
+					runCount.sum(), totalWallTime.sum(), maxWallTime.get());
+		}
+	}
+	
+	private void drainOutput(@Nonnull InputStream stream, @Nonnull String subject,
+			@Nullable Consumer<String> listener) {
+		try {
+			if (outputLogLevel == LogLevel.OFF && listener == null) {
+				stream.transferTo(OutputStream.nullOutputStream());
+				return;
+			}
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream))) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					logOutput(subject, line);
+					if (listener != null) {
+						listener.accept(line);
+					}
+				}
+			}
+		} catch (IOException e) {
+			logger.debug("Stopped reading the output of the command for {}", subject, e);
+		}
+	}
+	
+	private void logOutput(@Nonnull String subject, @Nonnull String line) {
+		switch (outputLogLevel) {
+			case TRACE -> logger.trace(OUTPUT_LOG_MESSAGE, subject, line);
+			case DEBUG -> logger.debug(OUTPUT_LOG_MESSAGE, subject, line);
+			case INFO -> logger.info(OUTPUT_LOG_MESSAGE, subject, line);
+			case WARN -> logger.warn(OUTPUT_LOG_MESSAGE, subject, line);
+			case ERROR, FATAL -> logger.error(OUTPUT_LOG_MESSAGE, subject, line);
+		}
+	}
+	
+	// A process spawned by the command may outlive it holding the output open, don't wait for it for long
+	private void awaitOutput(@Nonnull Future<?> output, @Nonnull InputStream stream, @Nonnull String subject) {
+		try {
+			output.get(OUTPUT_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			logger.debug("Stop waiting for the output of the command for {}", subject);
+			closeOutput(stream);
+			output.cancel(true);
+		} catch (ExecutionException e) {
+			logger.debug("Failed to read the output of the command for {}", subject, e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			closeOutput(stream);
+			output.cancel(true);
+		}
+	}
+	
+	private static void closeOutput(@Nonnull InputStream stream) {
+		try {
+			stream.close();
+		} catch (IOException e) {
+			// Nothing to do, the drainer stops anyway
+		}
+	}
+	
+	private static void kill(@Nonnull Process process) {
+		process.descendants().forEach(ProcessHandle::destroyForcibly);
+		process.destroyForcibly();
+	}
+	
+	record Result(int exitCode, long wallTime) {}
+	
+}
@@ -0,0 +1,139 @@
+package ua.od.whcrow.bfpu.cli.actions;
+
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ua.od.whcrow.bfpu.cli._commons.AppendOnlyLog;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+class ContentHashIndex implements Closeable {
+	
+	private static final Logger LOG = LoggerFactory.getLogger(ContentHashIndex.class);
+	private static final String SEPARATOR = "\t";
+	private static final String NO_HASH = "-";
+	
+	private final int sampleSize;
+	private final AppendOnlyLog log;
+	private final Map<String,Entry> entries = new ConcurrentHashMap<>();
+	
+	ContentHashIndex(@Nonnull Path filePath, int sampleSize)
+			throws IOException {
+		this.sampleSize = sampleSize;
+		log = new AppendOnlyLog(filePath);
+		List<String> lines = log.readLines();
+		for (String line : lines) {
+			String[] fields = line.split(SEPARATOR, 6);
+			if (fields.length != 6) {
+				LOG.warn("Skip a malformed line of the hash index {}: {}", filePath, line);
+				continue;
+			}
+			try {
+				entries.put(fields[5], new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+						Integer.parseInt(fields[2]), toHash(fields[3]), toHash(fields[4])));
+			} catch (NumberFormatException e) {
+				LOG.warn("Skip a malformed line of the hash index {}: {}", filePath, line);
+			}
+		}
+		LOG.debug("Loaded {} entries of the hash index {}", entries.size(), filePath);
+	}
+	
+	@Nullable
+	String getSampleHash(@Nonnull SourceFile file) {
+		Entry entry = getEntry(file);
+		return entry == null || entry.sampleSize() != sampleSize ? null : entry.sampleHash();
+	}
+	
+	@Nullable
+	String getContentHash(@Nonnull SourceFile file) {
+		Entry entry = getEntry(file);
+		return entry == null ? null : entry.contentHash();
+	}
+	
+	void putSampleHash(@Nonnull SourceFile file, @Nonnull String sampleHash)
+			throws IOException {
+		Entry entry = getEntry(file);
+		put(file, new Entry(file.size(), getModifiedTime(file), sampleSize, sampleHash,
+				entry == null ? null : entry.contentHash()));
+	}
+	
+	void putContentHash(@Nonnull SourceFile file, @Nonnull String contentHash)
+			throws IOException {
+		Entry entry = getEntry(file);
+		put(file, entry == null
+				? new Entry(file.size(), getModifiedTime(file), sampleSize, null, contentHash)
+				: new Entry(file.size(), getModifiedTime(file), entry.sampleSize(), entry.sampleHash(), contentHash));
+	}
+	
+	// Rewrites the index with the actual entries only, optionally dropping the entries of non-existent files
+	void compact(boolean prune)
+			throws IOException {
+		if (prune) {
+			int size = entries.size();
+			entries.keySet().removeIf(key -> Files.notExists(Path.of(key)));
+			LOG.debug("Dropped {} entries of the non-existent files from the hash index", size - entries.size());
+		} else if (log.getLineCount() <= entries.size() * 2L) {
+			return;
+		}
+		log.rewrite(entries.entrySet().stream()
+				.map(e -> toLine(e.getKey(), e.getValue()))
+				.toList());
+		LOG.debug("Compacted the hash index {} to {} entries", log.getFilePath(), entries.size());
+	}
+	
+	@Override
+	public void close()
+			throws IOException {
+		log.close();
+	}
+	
+	@Nullable
+	private Entry getEntry(@Nonnull SourceFile file) {
+		Entry entry = entries.get(toKey(file));
+		if (entry == null || entry.size() != file.size() || entry.modifiedTime() != getModifiedTime(file)) {
+			return null;
+		}
+		return entry;
+	}
+	
+	private void put(@Nonnull SourceFile file, @Nonnull Entry entry)
+			throws IOException {
+		String key = toKey(file);
+		entries.put(key, entry);
+		log.append(toLine(key, entry));
+	}
+	
+	@Nonnull
+	private static String toKey(@Nonnull SourceFile file) {
+		return file.path().toAbsolutePath().normalize().toString();
+	}
+	
+	private static long getModifiedTime(@Nonnull SourceFile file) {
+		return file.attributes().lastModifiedTime().to(TimeUnit.NANOSECONDS);
+	}
+	
+	@Nullable
+	private static String toHash(@Nonnull String field) {
+		return NO_HASH.equals(field) ? null : field;
+	}
+	
+	@Nonnull
+	private static String toLine(@Nonnull String key, @Nonnull Entry entry) {
+		return entry.size() + SEPARATOR + entry.modifiedTime() + SEPARATOR + entry.sampleSize()
+				+ SEPARATOR + (entry.sampleHash() == null ? NO_HASH : entry.sampleHash())
+				+ SEPARATOR + (entry.contentHash() == null ? NO_HASH : entry.contentHash())
+				+ SEPARATOR + key;
+	}
+	
+	private record Entry(long size, long modifiedTime, int sampleSize, @Nullable String sampleHash,
+			@Nullable String contentHash) {}
+	
+}
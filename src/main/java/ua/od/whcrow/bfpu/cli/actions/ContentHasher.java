@@ -0,0 +1,83 @@
+package ua.od.whcrow.bfpu.cli.actions;
+
+import jakarta.annotation.Nonnull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+class ContentHasher {
+	
+	private static final String ALGORITHM = "SHA-256";
+	private static final long MAPPED_CHUNK_SIZE = 1L << 28;
+	
+	private final int sampleSize;
+	
+	ContentHasher(int sampleSize) {
+		this.sampleSize = sampleSize;
+	}
+	
+	int getSampleSize() {
+		return sampleSize;
+	}
+	
+	boolean isSampleComplete(long fileSize) {
+		return fileSize <= 2L * sampleSize;
+	}
+	
+	@Nonnull
+	String hashSample(@Nonnull Path filePath)
+			throws IOException {
+		MessageDigest digest = createDigest();
+		try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (isSampleComplete(size)) {
+				update(digest, channel, 0, size);
+			} else {
+				update(digest, channel, 0, sampleSize);
+				update(digest, channel, size - sampleSize, sampleSize);
+			}
+		}
+		return HexFormat.of().formatHex(digest.digest());
+	}
+	
+	@Nonnull
+	String hashContent(@Nonnull Path filePath)
+			throws IOException {
+		MessageDigest digest = createDigest();
+		try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+			long size = channel.size();
+			for (long position = 0; position < size; position += MAPPED_CHUNK_SIZE) {
+				digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position,
+						Math.min(MAPPED_CHUNK_SIZE, size - position)));
+			}
+		}
+		return HexFormat.of().formatHex(digest.digest());
+	}
+	
+	private static void update(@Nonnull MessageDigest digest, @Nonnull FileChannel channel, long position, long length)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				break;
+			}
+		}
+		digest.update(buffer.flip());
+	}
+	
+	@Nonnull
+	private static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance(ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(ALGORITHM + " is not supported by the platform", e);
+		}
+	}
+	
+}
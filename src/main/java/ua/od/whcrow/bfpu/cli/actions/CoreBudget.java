@@ -0,0 +1,39 @@
+package ua.od.whcrow.bfpu.cli.actions;
+
+import java.util.concurrent.Semaphore;
+
+// Shares a number of cores between the concurrent conversions, the cores released by a finished job go to the next ones
+class CoreBudget {
+	
+	// Roughly the amount of pixels a single encoder thread keeps up with, 640x360 at 30 fps
+	private static final double PIXEL_RATE_PER_THREAD = 640 * 360 * 30;
+	
+	private final int coreCount;
+	// Fair, so a job requiring many cores isn't starved by the smaller ones arriving after it
+	private final Semaphore cores;
+	
+	CoreBudget(int coreCount) {
+		this.coreCount = coreCount;
+		cores = new Semaphore(coreCount, true);
+	}
+	
+	int getCoreCount() {
+		return coreCount;
+	}
+	
+	// Small videos get a single thread, so many of them are converted at once, while the big ones get more threads each
+	int getThreadCount(int imageWidth, int imageHeight, double frameRate) {
+		double pixelRate = (double) imageWidth * imageHeight * Math.max(frameRate, 1);
+		return (int) Math.max(1, Math.min(coreCount, Math.ceil(pixelRate / PIXEL_RATE_PER_THREAD)));
+	}
+	
+	void acquire(int threadCount)
+			throws InterruptedException {
+		cores.acquire(threadCount);
+	}
+	
+	void release(int threadCount) {
+		cores.release(threadCount);
+	}
+	
+}
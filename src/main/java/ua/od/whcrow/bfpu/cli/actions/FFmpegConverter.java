@@ -1,29 +1,60 @@
 package ua.od.whcrow.bfpu.cli.actions;
 
+import io.micrometer.core.instrument.binder.BaseUnits;
 import jakarta.annotation.Nonnull;
 import jakarta.annotation.Nullable;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
 import org.bytedeco.ffmpeg.avcodec.AVCodec;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avformat.AVOutputFormat;
+import org.bytedeco.ffmpeg.avformat.AVStream;
 import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avformat;
+import org.bytedeco.javacv.FFmpegFrameFilter;
 import org.bytedeco.javacv.FFmpegFrameGrabber;
 import org.bytedeco.javacv.FFmpegFrameRecorder;
 import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameFilter;
 import org.bytedeco.javacv.FrameGrabber;
 import org.bytedeco.javacv.FrameRecorder;
+import org.slf4j.Logger;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Component;
+import org.springframework.util.CollectionUtils;
+import org.springframework.util.unit.DataSize;
 import ua.od.whcrow.bfpu.cli.Setting;
 import ua.od.whcrow.bfpu.cli._commons.ConditionalOnArrayPropertyContains;
 import ua.od.whcrow.bfpu.cli._commons.ExceptionUtil;
+import ua.od.whcrow.bfpu.cli._commons.functions.e.ConsumerE;
+import ua.od.whcrow.bfpu.cli._commons.functions.e.SupplierE;
+import ua.od.whcrow.bfpu.cli.exceptions.ActionInitException;
+import ua.od.whcrow.bfpu.cli.exceptions.ActionPropertyException;
 import ua.od.whcrow.bfpu.cli.exceptions.ActionRunException;
 
+import java.io.IOException;
 import java.lang.reflect.Modifier;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 @Component
 @ConditionalOnArrayPropertyContains(
@@ -35,23 +66,36 @@ class FFmpegConverter extends AbstractAction {
 	
 	static final String ACTION_NAME = "ffmpeg-converter";
 	
+	private static final String PN_DECODE_AHEAD = ACTION_NAME + ".decode-ahead";
+	private static final String PN_FILTER_THREADS = ACTION_NAME + ".filter-threads";
+	private static final String PN_CORE_BUDGET = ACTION_NAME + ".core-budget";
+	private static final String PN_MEMORY_BUDGET = ACTION_NAME + ".memory-budget";
+	private static final String PN_SEGMENTS = ACTION_NAME + ".segments";
+	private static final Duration DEFAULT_SEGMENT_MIN_DURATION = Duration.ofMinutes(1);
+	private static final String PROBE_INDEX_FILE_NAME = ACTION_NAME + ".probe";
 	private static final String AV_CODEC_ID_PREFIX = "AV_CODEC_ID_";
-	private static final Map<String,Integer> CODEC_MAP;
-	
-	static {
-		CODEC_MAP = Arrays.stream(avcodec.class.getFields())
-				.filter(f -> Modifier.isStatic(f.getModifiers()))
-				.filter(f -> f.getName().startsWith(AV_CODEC_ID_PREFIX))
-				.filter(f -> f.getType() == int.class)
-				.collect(Collectors.toMap(
-						f -> f.getName().substring(AV_CODEC_ID_PREFIX.length()),
-						f -> (Integer) ExceptionUtil.sneakySupply(() -> f.get(null))
-				));
-	}
 	
 	private final FFmpegConverterProperties properties;
+	// Shared with the scheduling of the files while the stage is open
+	private volatile MediaProbeIndex probeIndex;
 	
-	FFmpegConverter(@Nonnull FFmpegConverterProperties properties) {
+	FFmpegConverter(@Nonnull FFmpegConverterProperties properties)
+			throws ActionInitException {
+		if (properties.decodeAhead() != null && properties.decodeAhead() <= 0) {
+			throw new ActionPropertyException(getName(), PN_DECODE_AHEAD, "must be positive");
+		}
+		if (properties.filterThreads() != null && properties.filterThreads() <= 0) {
+			throw new ActionPropertyException(getName(), PN_FILTER_THREADS, "must be positive");
+		}
+		if (properties.coreBudget() != null && properties.coreBudget() < 0) {
+			throw new ActionPropertyException(getName(), PN_CORE_BUDGET, "cannot be negative");
+		}
+		if (properties.memoryBudget() != null && properties.memoryBudget().toBytes() <= 0) {
+			throw new ActionPropertyException(getName(), PN_MEMORY_BUDGET, "must be positive");
+		}
+		if (properties.segments() != null && properties.segments() <= 0) {
+			throw new ActionPropertyException(getName(), PN_SEGMENTS, "must be positive");
+		}
 		this.properties = properties;
 	}
 	
@@ -61,32 +105,254 @@ class FFmpegConverter extends AbstractAction {
 		return ACTION_NAME;
 	}
 	
+	// The options affecting the output only, listed explicitly, so a new property re-runs the journaled files only if
+	// it's added here. The maps are sorted, so the order the options are given in doesn't matter.
+	@Nonnull
+	static String getJournalOptions(@Nonnull FFmpegConverterProperties properties) {
+		return new ToStringBuilder(properties, ToStringStyle.NO_CLASS_NAME_STYLE)
+				.append("fileExt", properties.fileExt())
+				.append("imageWidth", properties.imageWidth())
+				.append("imageHeight", properties.imageHeight())
+				.append("aspectRatio", properties.aspectRatio())
+				.append("skipMetadata", properties.skipMetadata())
+				.append("format", properties.format())
+				.append("option", sort(properties.option()))
+				.append("streamCopy", properties.streamCopy())
+				.append("filterGraph", properties.filterGraph())
+				.append("scaler", properties.scaler())
+				.append("videoEncoder", properties.videoEncoder())
+				.append("videoOption", sort(properties.videoOption()))
+				.append("videoCodec", properties.videoCodec())
+				.append("videoBitrate", properties.videoBitrate())
+				.append("videoQuality", properties.videoQuality())
+				.append("frameRate", properties.frameRate())
+				.append("frameRateMin", properties.frameRateMin())
+				.append("frameRateMax", properties.frameRateMax())
+				.append("displayRotation", properties.displayRotation())
+				.append("skipVideoMetadata", properties.skipVideoMetadata())
+				.append("audioEncoder", properties.audioEncoder())
+				.append("audioOption", sort(properties.audioOption()))
+				.append("audioCodec", properties.audioCodec())
+				.append("audioBitrate", properties.audioBitrate())
+				.append("sampleRate", properties.sampleRate())
+				.append("sampleRateMin", properties.sampleRateMin())
+				.append("sampleRateMax", properties.sampleRateMax())
+				.append("skipAudioMetadata", properties.skipAudioMetadata())
+				.toString();
+	}
+	
+	@Nullable
+	private static Map<String,String> sort(@Nullable Map<String,String> options) {
+		return options == null ? null : new TreeMap<>(options);
+	}
+	
+	@Nonnull
 	@Override
-	public void run(@Nonnull Setting setting)
+	String getOutputOptions() {
+		return getJournalOptions(properties);
+	}
+	
+	@Nonnull
+	@Override
+	ActionStage openStage(@Nonnull Setting setting)
 			throws ActionRunException {
 		logger.info("Setting: {}", properties);
 		FFmpegConverterOutputLogCallback.set(properties.outputLogLevel());
 		Integer videoCodecId = getCodecId(properties.videoEncoder(), properties.videoCodec(), "video");
 		Integer audioCodecId = getCodecId(properties.audioEncoder(), properties.audioCodec(), "audio");
-		try (Stream<Path> pathStream = createPathStream(setting)) {
-			for (Path sourceFilePath : (Iterable<Path>) pathStream::iterator) {
-				Path targetFilePath = buildTargetFilePath(sourceFilePath, setting);
-				if (setting.getSkipOnExistingTarget() && Files.exists(targetFilePath)) {
-					logger.info("Skip converting of {} because target {} already exists", sourceFilePath,
-							targetFilePath);
-					continue;
+		RunJournal journal = openJournal(setting);
+		CoreBudget coreBudget = createCoreBudget(setting);
+		MemoryBudget memoryBudget = properties.memoryBudget() == null
+				? null : new MemoryBudget(properties.memoryBudget().toBytes());
+		probeIndex = openProbeIndex(setting);
+		return new ActionStage() {
+			
+			// A skipped file is passed to the following actions anyway
+			@Override
+			public boolean process(@Nonnull SourceFile file)
+					throws ActionRunException {
+				if (isSourceMatched(file)) {
+					processFile(file, setting, journal, videoCodecId, audioCodecId, coreBudget, memoryBudget);
+				}
+				return true;
+			}
+			
+			@Override
+			public void close()
+					throws ActionRunException {
+				if (memoryBudget != null) {
+					// In the units of the budget property
+					logger.info("Peak estimated native memory of the concurrent conversions was {} of {} MB",
+							DataSize.ofBytes(memoryBudget.getPeakBytes()).toMegabytes(),
+							DataSize.ofBytes(memoryBudget.getByteCount()).toMegabytes());
 				}
 				try {
-					processFile(sourceFilePath, targetFilePath, videoCodecId, audioCodecId);
-				} catch (FrameGrabber.Exception | FrameRecorder.Exception e) {
-					String message = "Failed to convert the source file " + sourceFilePath;
-					if (setting.isFailTolerant()) {
-						logger.warn(message, e);
-						continue;
-					}
-					throw new ActionRunException(getName(), message, e);
+					closeProbeIndex();
+				} finally {
+					closeJournal(journal);
 				}
 			}
+			
+		};
+	}
+	
+	// The unknown duration counts as the longest one, so such a file isn't left to the end
+	@Override
+	long estimateWorkload(@Nonnull SourceFile file) {
+		if (!properties.scheduleByDuration()) {
+			return super.estimateWorkload(file);
+		}
+		long duration;
+		if (probeIndex == null) {
+			duration = MediaProbe.probeDuration(file.path());
+		} else {
+			MediaProbe.MediaInfo info = probe(file);
+			duration = info == null ? -1 : info.duration();
+		}
+		return duration < 0 ? Long.MAX_VALUE : duration;
+	}
+	
+	@Nullable
+	private MediaProbeIndex openProbeIndex(@Nonnull Setting setting)
+			throws ActionRunException {
+		if (!properties.probeIndex()) {
+			return null;
+		}
+		Path indexFilePath = getStateFilePath(setting, PROBE_INDEX_FILE_NAME);
+		try {
+			return new MediaProbeIndex(indexFilePath);
+		} catch (IOException e) {
+			throw new ActionRunException(getName(), "Failed to open the probe index " + indexFilePath, e);
+		}
+	}
+	
+	private void closeProbeIndex()
+			throws ActionRunException {
+		MediaProbeIndex index = probeIndex;
+		if (index == null) {
+			return;
+		}
+		probeIndex = null;
+		try (index) {
+			index.compact();
+		} catch (IOException e) {
+			throw new ActionRunException(getName(), "Failed to update the probe index", e);
+		}
+	}
+	
+	// The index is a cache only, so the file is probed anyway if it can't be updated
+	@Nullable
+	private MediaProbe.MediaInfo probe(@Nonnull SourceFile file) {
+		MediaProbeIndex index = probeIndex;
+		MediaProbe.MediaInfo info = index == null ? null : index.get(file);
+		if (info != null) {
+			return info;
+		}
+		info = MediaProbe.probe(file.path(), file.size());
+		if (info != null && index != null) {
+			try {
+				index.put(file, info);
+			} catch (IOException e) {
+				logger.warn("Failed to add {} to the probe index", file.path(), e);
+			}
+		}
+		return info;
+	}
+	
+	// The file which can't be probed is matched, so its conversion fails as usual
+	private boolean isSourceMatched(@Nonnull SourceFile file) {
+		FFmpegConverterProperties.SourceFilter filter = properties.source();
+		if (filter == null) {
+			return true;
+		}
+		MediaProbe.MediaInfo info = probe(file);
+		if (info == null) {
+			return true;
+		}
+		List<String> mismatches = new ArrayList<>();
+		int criterionCount = 0;
+		if (filter.minWidth() != null) {
+			criterionCount++;
+			if (info.width() < filter.minWidth()) {
+				mismatches.add("width " + info.width() + " is less than " + filter.minWidth());
+			}
+		}
+		if (filter.minHeight() != null) {
+			criterionCount++;
+			if (info.height() < filter.minHeight()) {
+				mismatches.add("height " + info.height() + " is less than " + filter.minHeight());
+			}
+		}
+		if (filter.minFrameRate() != null) {
+			criterionCount++;
+			if (info.frameRate() < filter.minFrameRate()) {
+				mismatches.add("frame rate " + info.frameRate() + " is less than " + filter.minFrameRate());
+			}
+		}
+		if (filter.minBitrate() != null) {
+			criterionCount++;
+			if (info.bitRate() < filter.minBitrate()) {
+				mismatches.add("bit rate " + (info.bitRate() < 0 ? "is unknown" : info.bitRate() + " is less than "
+						+ filter.minBitrate()));
+			}
+		}
+		if (filter.minDuration() != null) {
+			criterionCount++;
+			if (info.duration() < filter.minDuration().toNanos() / 1000) {
+				mismatches.add("duration " + (info.duration() < 0 ? "is unknown" : Duration.ofNanos(info.duration()
+						* 1000) + " is less than " + filter.minDuration()));
+			}
+		}
+		if (filter.codecNot() != null && !filter.codecNot().isEmpty()) {
+			criterionCount++;
+			if (info.videoCodec() != null && filter.codecNot().stream().anyMatch(info.videoCodec()::equalsIgnoreCase)) {
+				mismatches.add("video codec " + info.videoCodec() + " is excluded");
+			}
+		}
+		boolean matched = filter.match() == FFmpegConverterProperties.Match.ALL
+				? mismatches.isEmpty() : mismatches.size() < criterionCount || criterionCount == 0;
+		if (!matched) {
+			logger.info("Skip converting of {} because its {}", file.path(), String.join(", ", mismatches));
+			getMetrics().recordSkipped();
+		}
+		return matched;
+	}
+	
+	// The segments of the concurrent conversions share the available processors unless the budget is set, otherwise
+	// each of them would run an encoder using all the cores
+	@Nullable
+	private CoreBudget createCoreBudget(@Nonnull Setting setting) {
+		boolean segmented = properties.segments() != null && properties.segments() > 1;
+		if (properties.coreBudget() == null && !segmented) {
+			return null;
+		}
+		int coreCount = properties.coreBudget() == null || properties.coreBudget() == 0
+				? Runtime.getRuntime().availableProcessors() : properties.coreBudget();
+		logger.info("Sharing {} core/s between up to {} concurrent conversion/s", coreCount, setting.getParallelism());
+		return new CoreBudget(coreCount);
+	}
+	
+	private void processFile(@Nonnull SourceFile file, @Nonnull Setting setting, @Nullable RunJournal journal,
+			@Nullable Integer videoCodecId, @Nullable Integer audioCodecId, @Nullable CoreBudget coreBudget,
+			@Nullable MemoryBudget memoryBudget)
+			throws ActionRunException {
+		Path sourceFilePath = file.path();
+		Path targetFilePath = buildTargetFilePath(sourceFilePath, setting);
+		RunJournal.Item journalItem = startJournalItem(journal, sourceFilePath, targetFilePath);
+		if (isTargetDone(journalItem, targetFilePath, setting)) {
+			logger.info("Skip converting of {} because target {} is already done", sourceFilePath, targetFilePath);
+			return;
+		}
+		try {
+			processFile(file, targetFilePath, videoCodecId, audioCodecId, coreBudget, memoryBudget);
+			completeJournalItem(journalItem, targetFilePath);
+			getMetrics().recordProcessed(file.size(), targetFilePath);
+		} catch (FrameGrabber.Exception | FrameRecorder.Exception e) {
+			throw new ActionRunException(getName(), "Failed to convert the source file " + sourceFilePath, e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ActionRunException(getName(), "Interrupted while waiting for free cores or memory to convert "
+					+ sourceFilePath, e);
 		}
 	}
 	
@@ -111,7 +377,7 @@ class FFmpegConverter extends AbstractAction {
 	
 	private int getCodecId(@Nonnull String codec, @Nonnull String codecType)
 			throws ActionRunException {
-		Integer value = CODEC_MAP.get(codec.toUpperCase());
+		Integer value = CodecMap.VALUES.get(codec.toUpperCase(Locale.ROOT));
 		if (value == null) {
 			throw new ActionRunException(getName(), "Required " + codecType + " codec " + codec + " is not registered");
 		}
@@ -120,30 +386,364 @@ class FFmpegConverter extends AbstractAction {
 	
 	@Nonnull
 	@Override
-	protected Path buildTargetFilePath(@Nonnull Path sourceFilePath, @Nonnull Setting setting)
+	protected Path resolveTargetFilePath(@Nonnull Path sourceFilePath, @Nonnull Setting setting)
 			throws ActionRunException {
-		Path targetFilePath = super.buildTargetFilePath(sourceFilePath, setting);
+		Path targetFilePath = super.resolveTargetFilePath(sourceFilePath, setting);
 		if (properties.fileExt() != null) {
 			targetFilePath = withExtension(targetFilePath, properties.fileExt());
 		}
 		return targetFilePath;
 	}
 	
-	private void processFile(@Nonnull Path sourceFilePath, @Nonnull Path targetFilePath,
-			@Nullable Integer videoCodecId, @Nullable Integer audioCodecId)
-			throws FrameGrabber.Exception, FrameRecorder.Exception {
+	private void processFile(@Nonnull SourceFile file, @Nonnull Path targetFilePath,
+			@Nullable Integer videoCodecId, @Nullable Integer audioCodecId, @Nullable CoreBudget coreBudget,
+			@Nullable MemoryBudget memoryBudget)
+			throws FrameGrabber.Exception, FrameRecorder.Exception, InterruptedException {
+		Path sourceFilePath = file.path();
 		logger.info("Converting {} to {}", sourceFilePath, targetFilePath);
 		long start = System.currentTimeMillis();
+		int encodedFrameCount = 0;
 		try (
 				FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(sourceFilePath.toFile());
 				FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(targetFilePath.toFile(), 0);
 		) {
+			if (properties.streamCopy()) {
+				// Some containers (e.g. AVI) don't store the presentation timestamps the copied packets must have
+				grabber.setOption("fflags", "+genpts");
+			}
+			if (coreBudget != null) {
+				// The encoder is the bottleneck, so it gets the cores of the job
+				grabber.setVideoOption("threads", "1");
+			}
 			grabber.start();
 			populate(recorder, grabber, videoCodecId, audioCodecId);
-			recorder.start();
-			convert(grabber, recorder);
+			String reencodingReason = properties.streamCopy()
+					? getReencodingReason(grabber, recorder, targetFilePath, videoCodecId, audioCodecId) : null;
+			if (properties.streamCopy() && reencodingReason == null) {
+				logger.info("Source streams fit the target, therefore copying the packets (skipping the re-encoding)");
+				resetCodecTags(grabber.getFormatContext());
+				recorder.start(grabber.getFormatContext());
+				copyPackets(grabber, recorder);
+			} else {
+				if (reencodingReason != null) {
+					logger.info("Unable to copy the streams of {}: {}", sourceFilePath, reencodingReason);
+				}
+				int segmentCount = getSegmentCount(grabber);
+				// The core budget is always there for the segments, see createCoreBudget(...)
+				if (segmentCount > 1 && coreBudget != null) {
+					encodedFrameCount = encodeInSegments(file, targetFilePath, grabber, recorder, segmentCount,
+							videoCodecId, audioCodecId, coreBudget, memoryBudget);
+				} else {
+					long footprint = acquireMemory(grabber, recorder,
+							Objects.requireNonNullElse(properties.decodeAhead(), 0), memoryBudget);
+					try (ProgressReporter.Task task = getProgress().startTask(sourceFilePath.toString(), file.size(),
+							grabber.getLengthInTime())) {
+						if (coreBudget == null) {
+							encode(grabber, recorder, task);
+						} else {
+							encode(grabber, recorder, coreBudget, task);
+						}
+					} finally {
+						releaseMemory(footprint, memoryBudget);
+					}
+					encodedFrameCount = recorder.getFrameNumber();
+				}
+			}
+		}
+		long duration = System.currentTimeMillis() - start;
+		logger.info("Converted {} to {} in {} ms", sourceFilePath, targetFilePath, duration);
+		if (encodedFrameCount > 0) {
+			getMetrics().counter("bfpu.ffmpeg.encoded", "frames").increment(encodedFrameCount);
+			getMetrics().summary("bfpu.ffmpeg.speed", "fps").record(encodedFrameCount * 1000d / Math.max(duration, 1));
+		}
+	}
+	
+	private void encode(@Nonnull FFmpegFrameGrabber grabber, @Nonnull FFmpegFrameRecorder recorder,
+			@Nonnull CoreBudget coreBudget, @Nonnull ProgressReporter.Task task)
+			throws FrameGrabber.Exception, FrameRecorder.Exception, InterruptedException {
+		int threadCount = acquireCores(recorder, coreBudget);
+		try {
+			encode(grabber, recorder, task);
+		} finally {
+			coreBudget.release(threadCount);
+		}
+	}
+	
+	// The encoder gets as many threads as the cores acquired for it, which must be released once it's done
+	private int acquireCores(@Nonnull FFmpegFrameRecorder recorder, @Nonnull CoreBudget coreBudget)
+			throws InterruptedException {
+		int threadCount = coreBudget.getThreadCount(recorder.getImageWidth(), recorder.getImageHeight(),
+				recorder.getFrameRate());
+		coreBudget.acquire(threadCount);
+		logger.debug("Encoding with {} of {} core/s", threadCount, coreBudget.getCoreCount());
+		recorder.setVideoOption("threads", String.valueOf(threadCount));
+		// Audio encoders hardly gain anything from the threads
+		recorder.setAudioOption("threads", "1");
+		return threadCount;
+	}
+	
+	// The memory is acquired before the frames are decoded, and the cores after it, so the jobs waiting for memory don't
+	// hold any cores. Returns the estimated footprint, which must be released once the job is done.
+	private long acquireMemory(@Nonnull FFmpegFrameGrabber grabber, @Nonnull FFmpegFrameRecorder recorder,
+			int decodeAhead, @Nullable MemoryBudget memoryBudget)
+			throws InterruptedException {
+		if (memoryBudget == null || grabber.getVideoStream() < 0) {
+			return 0;
 		}
-		logger.info("Converted {} to {} in {} ms", sourceFilePath, targetFilePath, System.currentTimeMillis() - start);
+		AVStream videoStream = grabber.getFormatContext().streams(grabber.getVideoStream());
+		long footprint = MemoryBudget.estimate(grabber.getImageWidth(), grabber.getImageHeight(),
+				videoStream.codecpar().format(), recorder.getImageWidth(), recorder.getImageHeight(),
+				recorder.getPixelFormat(), decodeAhead + 1);
+		memoryBudget.acquire(footprint);
+		logger.debug("Encoding with {} MB of estimated native memory", DataSize.ofBytes(footprint).toMegabytes());
+		getMetrics().summary("bfpu.ffmpeg.native.memory", BaseUnits.BYTES).record(footprint);
+		return footprint;
+	}
+	
+	private static void releaseMemory(long footprint, @Nullable MemoryBudget memoryBudget) {
+		if (memoryBudget != null && footprint > 0) {
+			memoryBudget.release(footprint);
+		}
+	}
+	
+	// Each segment lasts at least the minimum duration, so a short video isn't split
+	private int getSegmentCount(@Nonnull FFmpegFrameGrabber grabber) {
+		if (properties.segments() == null || properties.segments() < 2 || grabber.getVideoStream() < 0
+				|| grabber.getLengthInTime() <= 0) {
+			return 1;
+		}
+		long minDuration = Objects.requireNonNullElse(properties.segmentMinDuration(), DEFAULT_SEGMENT_MIN_DURATION)
+				.toNanos() / 1000;
+		return (int) Math.min(properties.segments(), grabber.getLengthInTime() / Math.max(minDuration, 1));
+	}
+	
+	// The video is split into time ranges encoded concurrently into temporary segments, while the audio is encoded
+	// in one piece beside them, so it has no gaps at the boundaries. Then they're joined into the target by copying
+	// the packets. The segments and the audio take their cores and memory from the budgets shared by all the
+	// conversions, so the threads started per file wait rather than oversubscribe the processors.
+	// Returns the number of the encoded image frames.
+	private int encodeInSegments(@Nonnull SourceFile file, @Nonnull Path targetFilePath,
+			@Nonnull FFmpegFrameGrabber grabber, @Nonnull FFmpegFrameRecorder recorder, int segmentCount,
+			@Nullable Integer videoCodecId, @Nullable Integer audioCodecId, @Nonnull CoreBudget coreBudget,
+			@Nullable MemoryBudget memoryBudget)
+			throws FrameGrabber.Exception, FrameRecorder.Exception, InterruptedException {
+		Path sourceFilePath = file.path();
+		double frameRate = recorder.getFrameRate();
+		long frameCount = Math.round(grabber.getLengthInTime() * frameRate / 1000000);
+		long[] startTimes = new long[segmentCount];
+		List<Path> segmentPaths = new ArrayList<>();
+		// The segments are written in the target format, so they get the same codecs by default, and end with the target
+		// name, so the format is guessed the same way
+		String tempFilePrefix = "." + UUID.randomUUID() + ".";
+		String targetFileName = targetFilePath.getFileName().toString();
+		Path audioPath = grabber.getAudioStream() >= 0 && grabber.getAudioChannels() > 0
+				? targetFilePath.resolveSibling(tempFilePrefix + "audio." + targetFileName) : null;
+		logger.info("Encoding {} in {} segments", sourceFilePath, segmentCount);
+		AtomicBoolean cancelled = new AtomicBoolean();
+		int encodedFrameCount = 0;
+		ExecutorService executor = Executors.newFixedThreadPool(segmentCount + 1,
+				new CustomizableThreadFactory(getName() + "-segment-"));
+		try {
+			CompletionService<Integer> completionService = new ExecutorCompletionService<>(executor);
+			for (int i = 0; i < segmentCount; i++) {
+				long startFrame = frameCount * i / segmentCount;
+				long endFrame = frameCount * (i + 1) / segmentCount;
+				startTimes[i] = Math.round(startFrame * 1000000 / frameRate);
+				Path segmentPath = targetFilePath.resolveSibling(tempFilePrefix + "segment" + i + "." + targetFileName);
+				segmentPaths.add(segmentPath);
+				String taskDescription = sourceFilePath + " [" + (i + 1) + "/" + segmentCount + "]";
+				long taskLength = Math.round((endFrame - startFrame) * 1000000 / frameRate);
+				completionService.submit(() -> {
+					try (ProgressReporter.Task task = getProgress().startTask(taskDescription,
+							file.size() / segmentCount, taskLength)) {
+						return encodeSegment(sourceFilePath, segmentPath, startFrame, endFrame, videoCodecId,
+								coreBudget, memoryBudget, task, cancelled);
+					}
+				});
+			}
+			int taskCount = segmentCount;
+			if (audioPath != null) {
+				completionService.submit(() -> {
+					encodeAudio(sourceFilePath, audioPath, audioCodecId, coreBudget, memoryBudget, cancelled);
+					return 0;
+				});
+				taskCount++;
+			}
+			for (int i = 0; i < taskCount; i++) {
+				encodedFrameCount += awaitSegment(completionService, cancelled);
+			}
+			SegmentMuxer.mux(segmentPaths, startTimes, audioPath, targetFilePath, properties.format(),
+					properties.option());
+		} finally {
+			executor.shutdown();
+			while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+				logger.debug("Waiting for the segments of {} to stop", sourceFilePath);
+			}
+			for (Path segmentPath : segmentPaths) {
+				deleteSegment(segmentPath);
+			}
+			if (audioPath != null) {
+				deleteSegment(audioPath);
+			}
+		}
+		return encodedFrameCount;
+	}
+	
+	private void deleteSegment(@Nonnull Path segmentPath) {
+		try {
+			Files.deleteIfExists(segmentPath);
+		} catch (IOException e) {
+			logger.warn("Failed to delete the temporary segment {}", segmentPath, e);
+		}
+	}
+	
+	// The segments are awaited in the order they finish, so the other ones are stopped as soon as one fails
+	private static int awaitSegment(@Nonnull CompletionService<Integer> completionService,
+			@Nonnull AtomicBoolean cancelled)
+			throws FrameGrabber.Exception, FrameRecorder.Exception, InterruptedException {
+		try {
+			return completionService.take().get();
+		} catch (InterruptedException e) {
+			cancelled.set(true);
+			throw e;
+		} catch (ExecutionException e) {
+			cancelled.set(true);
+			if (e.getCause() instanceof FrameGrabber.Exception grabberException) {
+				throw grabberException;
+			}
+			if (e.getCause() instanceof FrameRecorder.Exception recorderException) {
+				throw recorderException;
+			}
+			throw new FrameRecorder.Exception("Failed to encode a segment", e.getCause());
+		}
+	}
+	
+	// Returns the number of the encoded image frames
+	private int encodeSegment(@Nonnull Path sourceFilePath, @Nonnull Path segmentPath, long startFrame,
+			long endFrame, @Nullable Integer videoCodecId, @Nonnull CoreBudget coreBudget,
+			@Nullable MemoryBudget memoryBudget, @Nonnull ProgressReporter.Task task, @Nonnull AtomicBoolean cancelled)
+			throws FrameGrabber.Exception, FrameRecorder.Exception, InterruptedException {
+		try (
+				FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(sourceFilePath.toFile());
+				FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(segmentPath.toFile(), 0);
+		) {
+			grabber.setVideoOption("threads", "1");
+			grabber.start();
+			populate(recorder, grabber, videoCodecId, null);
+			recorder.setAudioChannels(0);
+			long footprint = acquireMemory(grabber, recorder, 0, memoryBudget);
+			try {
+				if (startFrame > 0) {
+					// Seeks to the keyframe before and decodes up to the frame presented at the time, so the ranges
+					// are split at any frame rather than at the keyframes
+					grabber.setVideoTimestamp(Math.round(startFrame * 1000000 / recorder.getFrameRate()));
+				}
+				int threadCount = acquireCores(recorder, coreBudget);
+				try {
+					recordSegment(grabber, recorder, startFrame, endFrame, task, cancelled);
+					return recorder.getFrameNumber();
+				} finally {
+					coreBudget.release(threadCount);
+				}
+			} catch (FrameFilter.Exception e) {
+				throw new FFmpegFrameRecorder.Exception("Failed to filter the video: " + e.getMessage(), e);
+			} finally {
+				releaseMemory(footprint, memoryBudget);
+			}
+		}
+	}
+	
+	// Each target frame shows the source frame presented nearest to its time, so the frames are dropped or duplicated
+	// the same way whatever segment they fall into. The last segment ends with the source, which may be a bit shorter
+	// than its length says (e.g. because of the audio). The frames are scaled by the filter graph if it's enabled, while
+	// the frame rate is still converted here.
+	private void recordSegment(@Nonnull FFmpegFrameGrabber grabber, @Nonnull FFmpegFrameRecorder recorder,
+			long startFrame, long endFrame, @Nonnull ProgressReporter.Task task, @Nonnull AtomicBoolean cancelled)
+			throws FFmpegFrameGrabber.Exception, FFmpegFrameRecorder.Exception, FrameFilter.Exception {
+		String filters = properties.filterGraph() ? buildFilters(grabber, recorder, false) : null;
+		recorder.start();
+		double sourceFrameDuration = 1000000 / grabber.getFrameRate();
+		double targetFrameDuration = 1000000 / recorder.getFrameRate();
+		long startTime = Math.round(startFrame * targetFrameDuration);
+		long frameNumber = startFrame;
+		try (FFmpegFrameFilter filter = filters == null ? null : startFilter(grabber, filters)) {
+			Frame frame;
+			while (frameNumber < endFrame && !cancelled.get() && (frame = grabber.grabImage()) != null) {
+				task.update(frame.timestamp - startTime);
+				Frame image = frame;
+				if (filter != null) {
+					// A frame is scaled as soon as it's pushed
+					filter.push(frame);
+					image = filter.pull();
+				}
+				while (image != null && frameNumber < endFrame
+						&& frameNumber * targetFrameDuration < frame.timestamp + sourceFrameDuration / 2) {
+					recorder.record(image);
+					frameNumber++;
+				}
+			}
+		}
+	}
+	
+	// The audio encoder takes a single core
+	private void encodeAudio(@Nonnull Path sourceFilePath, @Nonnull Path audioPath, @Nullable Integer audioCodecId,
+			@Nonnull CoreBudget coreBudget, @Nullable MemoryBudget memoryBudget, @Nonnull AtomicBoolean cancelled)
+			throws FrameGrabber.Exception, FrameRecorder.Exception, InterruptedException {
+		try (
+				FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(sourceFilePath.toFile());
+				FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(audioPath.toFile(), 0);
+		) {
+			grabber.start();
+			populate(recorder, grabber, null, audioCodecId);
+			recorder.setImageWidth(0);
+			recorder.setImageHeight(0);
+			recorder.setAudioOption("threads", "1");
+			long footprint = 0;
+			if (memoryBudget != null) {
+				footprint = MemoryBudget.estimateAudio(grabber.getSampleRate(), grabber.getAudioChannels());
+				memoryBudget.acquire(footprint);
+			}
+			try {
+				coreBudget.acquire(1);
+				try {
+					recorder.start();
+					Frame frame;
+					while (!cancelled.get() && (frame = grabber.grabSamples()) != null) {
+						recorder.record(frame);
+					}
+				} finally {
+					coreBudget.release(1);
+				}
+			} finally {
+				releaseMemory(footprint, memoryBudget);
+			}
+		}
+	}
+	
+	private void encode(@Nonnull FFmpegFrameGrabber grabber, @Nonnull FFmpegFrameRecorder recorder,
+			@Nonnull ProgressReporter.Task task)
+			throws FrameGrabber.Exception, FrameRecorder.Exception {
+		recorder.start();
+		if (properties.decodeAhead() == null) {
+			convert(grabber, track(grabber::grab, task), recorder);
+		} else {
+			try (FrameDecoder decoder = new FrameDecoder(grabber, properties.decodeAhead())) {
+				convert(grabber, track(decoder::grab, task), recorder);
+			}
+		}
+	}
+	
+	// The position is updated by the grabbed frames, so the progress costs a field write per frame
+	@Nonnull
+	private static SupplierE<Frame,FFmpegFrameGrabber.Exception> track(
+			@Nonnull SupplierE<Frame,FFmpegFrameGrabber.Exception> frameSupplier, @Nonnull ProgressReporter.Task task) {
+		return () -> {
+			Frame frame = frameSupplier.get();
+			if (frame != null) {
+				task.update(frame.timestamp);
+			}
+			return frame;
+		};
 	}
 	
 	private void populate(@Nonnull FFmpegFrameRecorder recorder, @Nonnull FFmpegFrameGrabber grabber,
@@ -227,19 +827,92 @@ class FFmpegConverter extends AbstractAction {
 		}
 	}
 	
-	private void convert(@Nonnull FFmpegFrameGrabber grabber, @Nonnull FFmpegFrameRecorder recorder)
+	// Streams are copied as is if nothing but the container changes, so the target needs no codec, size or rate conversion
+	@Nullable
+	private String getReencodingReason(@Nonnull FFmpegFrameGrabber grabber, @Nonnull FFmpegFrameRecorder recorder,
+			@Nonnull Path targetFilePath, @Nullable Integer videoCodecId, @Nullable Integer audioCodecId) {
+		AVOutputFormat outputFormat = avformat.av_guess_format(properties.format(), targetFilePath.toString(), null);
+		if (outputFormat == null) {
+			return "target format is unknown";
+		}
+		if (grabber.getVideoStream() >= 0) {
+			if (videoCodecId != null && videoCodecId != grabber.getVideoCodec()) {
+				return "video codec differs";
+			}
+			if (avformat.avformat_query_codec(outputFormat, grabber.getVideoCodec(), avcodec.FF_COMPLIANCE_NORMAL) != 1) {
+				return "video codec " + grabber.getVideoCodecName() + " isn't supported by the target format";
+			}
+			if (recorder.getImageWidth() != grabber.getImageWidth()
+					|| recorder.getImageHeight() != grabber.getImageHeight()) {
+				return "image size differs";
+			}
+			if (properties.aspectRatio() != null && properties.aspectRatio() != grabber.getAspectRatio()) {
+				return "aspect ratio differs";
+			}
+			if (recorder.getFrameRate() != grabber.getFrameRate()) {
+				return "frame rate differs";
+			}
+			if (properties.displayRotation() != null && properties.displayRotation() != grabber.getDisplayRotation()) {
+				return "display rotation differs";
+			}
+			// The packets are copied as they are, so none of the encoder settings would be applied
+			if (properties.videoEncoder() != null || properties.videoBitrate() != null
+					|| properties.videoQuality() != null || !CollectionUtils.isEmpty(properties.videoOption())) {
+				return "video encoder settings are given";
+			}
+		}
+		if (grabber.getAudioStream() >= 0 && grabber.getAudioChannels() > 0) {
+			if (audioCodecId != null && audioCodecId != grabber.getAudioCodec()) {
+				return "audio codec differs";
+			}
+			if (avformat.avformat_query_codec(outputFormat, grabber.getAudioCodec(), avcodec.FF_COMPLIANCE_NORMAL) != 1) {
+				return "audio codec " + grabber.getAudioCodecName() + " isn't supported by the target format";
+			}
+			if (recorder.getSampleRate() != grabber.getSampleRate()) {
+				return "sample rate differs";
+			}
+			if (properties.audioEncoder() != null || properties.audioBitrate() != null
+					|| !CollectionUtils.isEmpty(properties.audioOption())) {
+				return "audio encoder settings are given";
+			}
+		}
+		return null;
+	}
+	
+	// Source codec tags may be invalid in the target format (e.g. "H264" of AVI in MP4), let the muxer choose them
+	private static void resetCodecTags(@Nonnull AVFormatContext formatContext) {
+		for (int i = 0; i < formatContext.nb_streams(); i++) {
+			formatContext.streams(i).codecpar().codec_tag(0);
+		}
+	}
+	
+	private static void copyPackets(@Nonnull FFmpegFrameGrabber grabber, @Nonnull FFmpegFrameRecorder recorder)
+			throws FFmpegFrameGrabber.Exception, FFmpegFrameRecorder.Exception {
+		AVPacket packet;
+		while ((packet = grabber.grabPacket()) != null) {
+			recorder.recordPacket(packet);
+		}
+	}
+	
+	private void convert(@Nonnull FFmpegFrameGrabber grabber,
+			@Nonnull SupplierE<Frame,FFmpegFrameGrabber.Exception> frameSupplier, @Nonnull FFmpegFrameRecorder recorder)
 			throws FFmpegFrameGrabber.Exception, FFmpegFrameRecorder.Exception {
 		double grabberFrameRate = grabber.getFrameRate();
 		logger.debug("Source frame rate is {}", grabberFrameRate);
 		logger.debug("Target frame rate is {}", recorder.getFrameRate());
 		double lengthInSec = (double) grabber.getLengthInTime() / 1000000L;
 		logger.debug("Video length {} sec", lengthInSec);
+		String filters = properties.filterGraph() ? buildFilters(grabber, recorder, true) : null;
+		if (filters != null) {
+			filter(grabber, frameSupplier, recorder, filters);
+			return;
+		}
 		if (Math.floor(grabberFrameRate) == Math.floor(recorder.getFrameRate())) {
 			if (grabberFrameRate == recorder.getFrameRate()) {
 				logger.info("Difference between source/target frame rate is insufficient, "
 						+ "therefore recording all frames (skipping the frame drop/duplicate procedure)");
 			}
-			recordAllFrames(grabber, recorder);
+			recordAllFrames(frameSupplier, recorder);
 			return;
 		}
 		double totalFrameNum = grabberFrameRate * lengthInSec;
@@ -248,17 +921,99 @@ class FFmpegConverter extends AbstractAction {
 		logger.debug("Expecting {} image frames to be recorded (approximately)", Math.round(newFrameNum));
 		double step = totalFrameNum / newFrameNum;
 		logger.debug("Frame drop/duplicate step is {}", step);
+		dropOrDuplicateFrames(frameSupplier, recorder::record, step, logger);
+	}
+	
+	// The audio frames bypass the filter graph, while the video frames are recorded as soon as the filters pass them
+	private void filter(@Nonnull FFmpegFrameGrabber grabber,
+			@Nonnull SupplierE<Frame,FFmpegFrameGrabber.Exception> frameSupplier, @Nonnull FFmpegFrameRecorder recorder,
+			@Nonnull String filters)
+			throws FFmpegFrameGrabber.Exception, FFmpegFrameRecorder.Exception {
+		try (FFmpegFrameFilter filter = startFilter(grabber, filters)) {
+			Frame frame;
+			while ((frame = frameSupplier.get()) != null) {
+				if (frame.image == null) {
+					recorder.record(frame);
+					continue;
+				}
+				filter.push(frame);
+				recordFiltered(filter, recorder);
+			}
+			// Flushes the frames held by the filters, e.g. the last ones duplicated by "fps"
+			filter.push(null);
+			recordFiltered(filter, recorder);
+		} catch (FrameFilter.Exception e) {
+			throw new FFmpegFrameRecorder.Exception("Failed to filter the video: " + e.getMessage(), e);
+		}
+	}
+	
+	private static void recordFiltered(@Nonnull FFmpegFrameFilter filter, @Nonnull FFmpegFrameRecorder recorder)
+			throws FrameFilter.Exception, FFmpegFrameRecorder.Exception {
+		Frame frame;
+		while ((frame = filter.pull()) != null) {
+			recorder.record(frame);
+		}
+	}
+	
+	// The frame rate is converted by "fps" filter and the size by "scale" one in the native code, so the encoder gets
+	// the frames of the target size. Returns null if neither of them is needed.
+	@Nullable
+	private String buildFilters(@Nonnull FFmpegFrameGrabber grabber, @Nonnull FFmpegFrameRecorder recorder,
+			boolean convertFrameRate) {
+		List<String> filters = new ArrayList<>(2);
+		if (grabber.getImageWidth() != recorder.getImageWidth() || grabber.getImageHeight() != recorder.getImageHeight()) {
+			String scale = "scale=w=" + recorder.getImageWidth() + ":h=" + recorder.getImageHeight() + ":flags="
+					+ properties.scaler().name().toLowerCase(Locale.ROOT);
+			if (properties.filterThreads() != null) {
+				scale += ":threads=" + properties.filterThreads();
+			}
+			filters.add(scale);
+		}
+		if (convertFrameRate && grabber.getFrameRate() != recorder.getFrameRate()) {
+			// The dropped frames aren't scaled, while the duplicated ones are scaled once
+			filters.add(recorder.getFrameRate() < grabber.getFrameRate() ? 0 : filters.size(),
+					"fps=fps=" + recorder.getFrameRate());
+		}
+		if (filters.isEmpty()) {
+			return null;
+		}
+		String joinedFilters = String.join(",", filters);
+		logger.debug("Filtering the video by {}", joinedFilters);
+		return joinedFilters;
+	}
+	
+	// The filter gets the frames as the grabber returns them, numbered at the source frame rate
+	@Nonnull
+	private static FFmpegFrameFilter startFilter(@Nonnull FFmpegFrameGrabber grabber, @Nonnull String filters)
+			throws FrameFilter.Exception {
+		FFmpegFrameFilter filter = new FFmpegFrameFilter(filters, grabber.getImageWidth(), grabber.getImageHeight());
+		filter.setPixelFormat(grabber.getPixelFormat());
+		filter.setFrameRate(grabber.getFrameRate());
+		filter.setAspectRatio(grabber.getAspectRatio());
+		try {
+			filter.start();
+		} catch (FrameFilter.Exception e) {
+			filter.close();
+			throw e;
+		}
+		return filter;
+	}
+	
+	// Records each step-th grabbed image frame, so the frames are dropped if the step exceeds 1 and duplicated otherwise.
+	// The other frames (e.g. audio ones) are recorded as is.
+	static void dropOrDuplicateFrames(@Nonnull SupplierE<Frame,FFmpegFrameGrabber.Exception> frameSupplier,
+			@Nonnull ConsumerE<Frame,FFmpegFrameRecorder.Exception> frameRecorder, double step, @Nonnull Logger logger)
+			throws FFmpegFrameGrabber.Exception, FFmpegFrameRecorder.Exception {
 		long recordedFrameNumber = 0, grabbedFrameIndex = 0;
 		Frame frame;
-		while ((frame = grabber.grab()) != null) {
+		while ((frame = frameSupplier.get()) != null) {
 			if (frame.image == null) {
-				recorder.record(frame);
+				frameRecorder.accept(frame);
 				continue;
 			}
 			long requiredFrameIndex;
 			while ((requiredFrameIndex = Math.round(recordedFrameNumber  * step)) == grabbedFrameIndex) {
-				recorder.record(frame);
-				logger.trace("Recorded a grabbed frame #{} as frame#{}", requiredFrameIndex, recordedFrameNumber);
+				frameRecorder.accept(frame);
 				recordedFrameNumber++;
 			}
 			grabbedFrameIndex++;
@@ -266,12 +1021,27 @@ class FFmpegConverter extends AbstractAction {
 		logger.debug("Grabbed {} frames, recorded {} frames", grabbedFrameIndex, recordedFrameNumber);
 	}
 	
-	private static void recordAllFrames(@Nonnull FFmpegFrameGrabber grabber, @Nonnull FFmpegFrameRecorder recorder)
+	private static void recordAllFrames(@Nonnull SupplierE<Frame,FFmpegFrameGrabber.Exception> frameSupplier,
+			@Nonnull FFmpegFrameRecorder recorder)
 			throws FFmpegFrameGrabber.Exception, FFmpegFrameRecorder.Exception {
 		Frame frame;
-		while ((frame = grabber.grab()) != null) {
+		while ((frame = frameSupplier.get()) != null) {
 			recorder.record(frame);
 		}
 	}
 	
+	// Built on the first lookup of a codec by name only, since reading the constants of avcodec loads the natives
+	private static final class CodecMap {
+		
+		private static final Map<String,Integer> VALUES = Arrays.stream(avcodec.class.getFields())
+				.filter(f -> Modifier.isStatic(f.getModifiers()))
+				.filter(f -> f.getName().startsWith(AV_CODEC_ID_PREFIX))
+				.filter(f -> f.getType() == int.class)
+				.collect(Collectors.toMap(
+						f -> f.getName().substring(AV_CODEC_ID_PREFIX.length()),
+						f -> (Integer) ExceptionUtil.sneakySupply(() -> f.get(null))
+				));
+		
+	}
+	
 }
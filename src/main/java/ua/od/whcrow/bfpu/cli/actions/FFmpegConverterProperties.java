@@ -6,14 +6,19 @@ import org.apache.commons.lang3.builder.ToStringStyle;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.boot.context.properties.bind.DefaultValue;
 import org.springframework.boot.logging.LogLevel;
+import org.springframework.util.unit.DataSize;
 
+import java.time.Duration;
 import java.util.Map;
+import java.util.Set;
 
 @ConfigurationProperties(FFmpegConverter.ACTION_NAME)
 record FFmpegConverterProperties(
 		@DefaultValue(value = "OFF")
 		LogLevel outputLogLevel,
 		String fileExt,
+		SourceFilter source,
+		boolean probeIndex,
 		
 		Integer imageWidth,
 		Integer imageHeight,
@@ -21,6 +26,17 @@ record FFmpegConverterProperties(
 		boolean skipMetadata,
 		String format,
 		Map<String,String> option,
+		boolean streamCopy,
+		Integer decodeAhead,
+		boolean filterGraph,
+		@DefaultValue(value = "BICUBIC")
+		Scaler scaler,
+		Integer filterThreads,
+		Integer coreBudget,
+		DataSize memoryBudget,
+		boolean scheduleByDuration,
+		Integer segments,
+		Duration segmentMinDuration,
 		
 		String videoEncoder,
 		Map<String,String> videoOption,
@@ -49,4 +65,29 @@ record FFmpegConverterProperties(
 		return ToStringBuilder.reflectionToString(this, ToStringStyle.NO_CLASS_NAME_STYLE);
 	}
 	
+	// The criteria of the source files to convert, the other ones are skipped
+	record SourceFilter(
+			@DefaultValue(value = "ALL")
+			Match match,
+			Integer minWidth,
+			Integer minHeight,
+			Double minFrameRate,
+			Long minBitrate,
+			Duration minDuration,
+			Set<String> codecNot
+	) {}
+	
+	enum Match {
+		ALL,
+		ANY
+	}
+	
+	// The flags of libswscale from the fastest to the sharpest
+	enum Scaler {
+		FAST_BILINEAR,
+		BILINEAR,
+		BICUBIC,
+		LANCZOS
+	}
+	
 }
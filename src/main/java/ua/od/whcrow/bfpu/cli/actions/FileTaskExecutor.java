@@ -0,0 +1,154 @@
+package ua.od.whcrow.bfpu.cli.actions;
+
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+import org.slf4j.Logger;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import ua.od.whcrow.bfpu.cli._commons.functions.e.ConsumerE;
+import ua.od.whcrow.bfpu.cli.exceptions.ActionRunException;
+
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+class FileTaskExecutor implements AutoCloseable {
+	
+	private final String actionName;
+	private final boolean failTolerant;
+	private final Logger logger;
+	private final ActionMetrics metrics;
+	private final ExecutorService executor;
+	private final int slotCount;
+	private final Semaphore slots;
+	private final Map<Path,ActionRunException> failures = new LinkedHashMap<>();
+	private volatile ActionRunException fatalFailure;
+	
+	FileTaskExecutor(@Nonnull String actionName, int parallelism, boolean failTolerant, @Nonnull Logger logger) {
+		this(actionName, parallelism, failTolerant, logger, null);
+	}
+	
+	// The failures are counted by the metrics if they're given
+	FileTaskExecutor(@Nonnull String actionName, int parallelism, boolean failTolerant, @Nonnull Logger logger,
+			@Nullable ActionMetrics metrics) {
+		this.actionName = actionName;
+		this.failTolerant = failTolerant;
+		this.logger = logger;
+		this.metrics = metrics;
+		if (parallelism > 1) {
+			executor = Executors.newFixedThreadPool(parallelism, new CustomizableThreadFactory(actionName + "-"));
+			// Keep the queue short, so the file stream is consumed as fast as the workers go
+			slotCount = parallelism * 2;
+		} else {
+			executor = null;
+			slotCount = 1;
+		}
+		slots = new Semaphore(slotCount);
+	}
+	
+	boolean submit(@Nonnull SourceFile file, @Nonnull ConsumerE<SourceFile,ActionRunException> task)
+			throws ActionRunException {
+		if (fatalFailure != null) {
+			return false;
+		}
+		if (executor == null) {
+			execute(file, task);
+			return fatalFailure == null;
+		}
+		try {
+			slots.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ActionRunException(actionName, "Interrupted while waiting for a free worker", e);
+		}
+		if (fatalFailure != null) {
+			slots.release();
+			return false;
+		}
+		executor.execute(() -> {
+			try {
+				if (fatalFailure == null) {
+					execute(file, task);
+				}
+			} finally {
+				slots.release();
+			}
+		});
+		return true;
+	}
+	
+	void fail(@Nonnull Path file, @Nonnull ActionRunException exception) {
+		synchronized (failures) {
+			failures.put(file, exception);
+		}
+		if (metrics != null) {
+			metrics.recordFailed();
+		}
+		if (failTolerant) {
+			logger.warn(exception.getMessage(), exception.getCause() == null ? exception : exception.getCause());
+			return;
+		}
+		synchronized (this) {
+			if (fatalFailure == null) {
+				fatalFailure = exception;
+			} else {
+				fatalFailure.addSuppressed(exception);
+			}
+		}
+	}
+	
+	void await()
+			throws ActionRunException {
+		if (executor != null) {
+			try {
+				slots.acquire(slotCount);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ActionRunException(actionName, "Interrupted while waiting for the workers to finish", e);
+			}
+			slots.release(slotCount);
+		}
+		synchronized (failures) {
+			if (!failures.isEmpty()) {
+				logger.warn("Failed to process {} file/s:\n{}", failures.size(), failures.entrySet().stream()
+						.map(e -> "\t" + e.getKey() + ": " + e.getValue().getMessage())
+						.collect(Collectors.joining("\n")));
+			}
+		}
+		if (fatalFailure != null) {
+			throw fatalFailure;
+		}
+	}
+	
+	private void execute(@Nonnull SourceFile file, @Nonnull ConsumerE<SourceFile,ActionRunException> task) {
+		try {
+			task.accept(file);
+		} catch (ActionRunException e) {
+			fail(file.path(), e);
+		} catch (RuntimeException e) {
+			fail(file.path(), new ActionRunException(actionName, "Unexpected failure while processing " + file.path(),
+					e));
+		}
+	}
+	
+	@Override
+	public void close() {
+		if (executor == null) {
+			return;
+		}
+		executor.shutdown();
+		try {
+			while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+				logger.debug("Waiting for the workers to finish");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			executor.shutdownNow();
+		}
+	}
+	
+}
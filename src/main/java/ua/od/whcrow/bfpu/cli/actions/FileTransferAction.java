@@ -0,0 +1,107 @@
+package ua.od.whcrow.bfpu.cli.actions;
+
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.stereotype.Component;
+import ua.od.whcrow.bfpu.cli.Setting;
+import ua.od.whcrow.bfpu.cli._commons.ConditionalOnArrayPropertyContains;
+import ua.od.whcrow.bfpu.cli._commons.FileUtil;
+import ua.od.whcrow.bfpu.cli.exceptions.ActionRunException;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Locale;
+
+@Component
+@ConditionalOnArrayPropertyContains(
+		name = FileTransferAction.PN_ACTION_NAME,
+		containsValue = FileTransferAction.ACTION_NAME
+)
+@EnableConfigurationProperties(FileTransferProperties.class)
+class FileTransferAction extends AbstractAction {
+	
+	static final String ACTION_NAME = "file-transfer";
+	
+	private final FileTransferProperties properties;
+	
+	FileTransferAction(@Nonnull FileTransferProperties properties) {
+		this.properties = properties;
+	}
+	
+	@Nonnull
+	@Override
+	public String getName() {
+		return ACTION_NAME;
+	}
+	
+	@Nonnull
+	@Override
+	String getOutputOptions() {
+		return properties.mode().name();
+	}
+	
+	@Nonnull
+	@Override
+	ActionStage openStage(@Nonnull Setting setting)
+			throws ActionRunException {
+		logger.info("Setting: {}", properties);
+		RunJournal journal = openJournal(setting);
+		return new ActionStage() {
+			
+			// A moved file is gone from the source, so there's nothing to pass to the next stage
+			@Override
+			public boolean process(@Nonnull SourceFile file)
+					throws ActionRunException {
+				transfer(file, setting, journal);
+				return properties.mode() != FileTransferProperties.Mode.MOVE;
+			}
+			
+			@Override
+			public void close()
+					throws ActionRunException {
+				closeJournal(journal);
+			}
+			
+		};
+	}
+	
+	private void transfer(@Nonnull SourceFile file, @Nonnull Setting setting, @Nullable RunJournal journal)
+			throws ActionRunException {
+		Path sourceFilePath = file.path();
+		Path targetFilePath = buildTargetFilePath(sourceFilePath, setting);
+		RunJournal.Item journalItem = startJournalItem(journal, sourceFilePath, targetFilePath);
+		if (isTargetDone(journalItem, targetFilePath, setting)) {
+			logger.info("Skip a transfer of {} because target {} is already done", sourceFilePath, targetFilePath);
+			return;
+		}
+		long start = System.currentTimeMillis();
+		// Only the data copied counts as read and written
+		long copiedByteCount = 0;
+		try {
+			switch (properties.mode()) {
+				case COPY -> {
+					FileUtil.copy(sourceFilePath, targetFilePath);
+					copiedByteCount = file.size();
+				}
+				case MOVE -> {
+					if (!FileUtil.move(sourceFilePath, targetFilePath)) {
+						logger.debug("{} is copied and deleted since it can't be renamed to {}", sourceFilePath,
+								targetFilePath);
+						copiedByteCount = file.size();
+					}
+				}
+				case HARDLINK -> FileUtil.link(targetFilePath, sourceFilePath);
+				case SYMLINK -> FileUtil.symlink(targetFilePath, sourceFilePath);
+			}
+		} catch (IOException e) {
+			throw new ActionRunException(getName(), "Failed to " + properties.mode().name().toLowerCase(Locale.ROOT) + " "
+					+ sourceFilePath + " to " + targetFilePath, e);
+		}
+		completeJournalItem(journalItem, targetFilePath);
+		getMetrics().recordProcessed(copiedByteCount, copiedByteCount);
+		logger.debug("Transfer of {} to {} took {} ms", sourceFilePath, targetFilePath,
+				System.currentTimeMillis() - start);
+	}
+	
+}
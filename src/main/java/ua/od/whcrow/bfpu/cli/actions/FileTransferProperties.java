@@ -0,0 +1,28 @@
+package ua.od.whcrow.bfpu.cli.actions;
+
+import jakarta.annotation.Nonnull;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+@ConfigurationProperties(FileTransferAction.ACTION_NAME)
+record FileTransferProperties(
+		@DefaultValue(value = "COPY")
+		Mode mode
+) {
+	
+	@Nonnull
+	@Override
+	public String toString() {
+		return ToStringBuilder.reflectionToString(this, ToStringStyle.NO_CLASS_NAME_STYLE);
+	}
+	
+	enum Mode {
+		COPY,
+		MOVE,
+		HARDLINK,
+		SYMLINK
+	}
+	
+}
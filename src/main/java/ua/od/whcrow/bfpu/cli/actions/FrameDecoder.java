@@ -0,0 +1,107 @@
+package ua.od.whcrow.bfpu.cli.actions;
+
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Grabs the frames on a separate thread ahead of the consumer, so decoding overlaps with encoding
+class FrameDecoder implements AutoCloseable {
+	
+	private static final Object END = new Object();
+	
+	private final FFmpegFrameGrabber grabber;
+	private final BlockingQueue<Object> queue;
+	private final Thread thread;
+	private volatile boolean closed;
+	private Frame frame;
+	
+	FrameDecoder(@Nonnull FFmpegFrameGrabber grabber, int depth) {
+		this.grabber = grabber;
+		queue = new ArrayBlockingQueue<>(depth);
+		thread = new Thread(this::decode, Thread.currentThread().getName() + "-decoder");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	// The returned frame stays valid until the next call, the same as the one returned by the grabber itself
+	@Nullable
+	Frame grab()
+			throws FFmpegFrameGrabber.Exception {
+		release();
+		Object item;
+		try {
+			item = queue.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new FFmpegFrameGrabber.Exception("Interrupted while waiting for a decoded frame", e);
+		}
+		if (item == END) {
+			queue.add(END);
+			return null;
+		}
+		if (item instanceof Throwable e) {
+			queue.add(e);
+			throw new FFmpegFrameGrabber.Exception("Failed to decode a frame: " + e.getMessage(), e);
+		}
+		frame = (Frame) item;
+		return frame;
+	}
+	
+	@Override
+	public void close() {
+		closed = true;
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		release();
+		for (Object item : queue) {
+			if (item instanceof Frame queuedFrame) {
+				queuedFrame.close();
+			}
+		}
+		queue.clear();
+	}
+	
+	private void decode() {
+		try {
+			Frame grabbedFrame;
+			while (!closed && (grabbedFrame = grabber.grab()) != null) {
+				// The grabber reuses its frame, so pass a copy
+				put(grabbedFrame.clone());
+			}
+			put(END);
+		} catch (FFmpegFrameGrabber.Exception | RuntimeException e) {
+			put(e);
+		}
+	}
+	
+	private void put(@Nonnull Object item) {
+		try {
+			while (!closed) {
+				if (queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (item instanceof Frame unusedFrame) {
+			unusedFrame.close();
+		}
+	}
+	
+	private void release() {
+		if (frame != null) {
+			frame.close();
+			frame = null;
+		}
+	}
+	
+}
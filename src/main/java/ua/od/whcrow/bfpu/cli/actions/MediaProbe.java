@@ -0,0 +1,90 @@
+package ua.od.whcrow.bfpu.cli.actions;
+
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+import org.bytedeco.ffmpeg.avcodec.AVCodecParameters;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.avutil.AVRational;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avformat;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.javacpp.PointerPointer;
+
+import java.nio.file.Path;
+
+// Reads the container header only, without opening the codecs as FFmpegFrameGrabber.start() does
+final class MediaProbe {
+	
+	private MediaProbe() {
+	}
+	
+	// Returns the duration in microseconds, or -1 if the file isn't a media or its duration is unknown
+	static long probeDuration(@Nonnull Path filePath) {
+		AVFormatContext context = new AVFormatContext(null);
+		if (avformat.avformat_open_input(context, filePath.toString(), null, null) < 0) {
+			return -1;
+		}
+		try {
+			// Some containers don't declare the duration in the header, so a few packets must be read
+			if (context.duration() == avutil.AV_NOPTS_VALUE || context.duration() <= 0) {
+				avformat.avformat_find_stream_info(context, (PointerPointer<?>) null);
+			}
+			long duration = context.duration();
+			return duration == avutil.AV_NOPTS_VALUE || duration <= 0 ? -1 : duration;
+		} finally {
+			avformat.avformat_close_input(context);
+		}
+	}
+	
+	// Returns null if the file isn't a media. The streams are probed by reading a few packets only if the header lacks
+	// the size of the video, the duration or the bit rate.
+	@Nullable
+	static MediaInfo probe(@Nonnull Path filePath, long fileSize) {
+		AVFormatContext context = new AVFormatContext(null);
+		if (avformat.avformat_open_input(context, filePath.toString(), null, null) < 0) {
+			return null;
+		}
+		try {
+			AVStream videoStream = findVideoStream(context);
+			if ((videoStream != null && videoStream.codecpar().width() <= 0) || context.duration() <= 0
+					|| context.bit_rate() <= 0) {
+				avformat.avformat_find_stream_info(context, (PointerPointer<?>) null);
+				videoStream = findVideoStream(context);
+			}
+			long duration = context.duration() == avutil.AV_NOPTS_VALUE || context.duration() <= 0
+					? -1 : context.duration();
+			long bitRate = context.bit_rate() > 0 ? context.bit_rate()
+					: duration > 0 ? fileSize * 8 * 1000000 / duration : -1;
+			if (videoStream == null) {
+				return new MediaInfo(null, 0, 0, 0, duration, bitRate);
+			}
+			AVCodecParameters parameters = videoStream.codecpar();
+			AVRational frameRate = videoStream.avg_frame_rate().num() > 0
+					? videoStream.avg_frame_rate() : videoStream.r_frame_rate();
+			return new MediaInfo(avcodec.avcodec_get_name(parameters.codec_id()).getString(), parameters.width(),
+					parameters.height(), frameRate.den() > 0 ? avutil.av_q2d(frameRate) : 0, duration, bitRate);
+		} finally {
+			avformat.avformat_close_input(context);
+		}
+	}
+	
+	// The cover art is a video stream too, but a single picture only
+	@Nullable
+	private static AVStream findVideoStream(@Nonnull AVFormatContext context) {
+		for (int i = 0; i < context.nb_streams(); i++) {
+			AVStream stream = context.streams(i);
+			if (stream.codecpar().codec_type() == avutil.AVMEDIA_TYPE_VIDEO
+					&& (stream.disposition() & avformat.AV_DISPOSITION_ATTACHED_PIC) == 0) {
+				return stream;
+			}
+		}
+		return null;
+	}
+	
+	// The video codec is null and the size is 0 if the media has no video, the duration and the bit rate are -1 if
+	// they're unknown
+	record MediaInfo(@Nullable String videoCodec, int width, int height, double frameRate, long duration,
+			long bitRate) {}
+	
+}
@@ -0,0 +1,105 @@
+package ua.od.whcrow.bfpu.cli.actions;
+
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ua.od.whcrow.bfpu.cli._commons.AppendOnlyLog;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Keeps the probed media info of the files, so an unchanged file isn't opened again by the next runs
+class MediaProbeIndex implements Closeable {
+	
+	private static final Logger LOG = LoggerFactory.getLogger(MediaProbeIndex.class);
+	private static final String SEPARATOR = "\t";
+	private static final String NO_CODEC = "-";
+	
+	private final AppendOnlyLog log;
+	private final Map<String,Entry> entries = new ConcurrentHashMap<>();
+	
+	MediaProbeIndex(@Nonnull Path filePath)
+			throws IOException {
+		log = new AppendOnlyLog(filePath);
+		List<String> lines = log.readLines();
+		for (String line : lines) {
+			String[] fields = line.split(SEPARATOR, 9);
+			if (fields.length != 9) {
+				LOG.warn("Skip a malformed line of the probe index {}: {}", filePath, line);
+				continue;
+			}
+			try {
+				entries.put(fields[8], new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+						new MediaProbe.MediaInfo(NO_CODEC.equals(fields[2]) ? null : fields[2],
+								Integer.parseInt(fields[3]), Integer.parseInt(fields[4]), Double.parseDouble(fields[5]),
+								Long.parseLong(fields[6]), Long.parseLong(fields[7]))));
+			} catch (NumberFormatException e) {
+				LOG.warn("Skip a malformed line of the probe index {}: {}", filePath, line);
+			}
+		}
+		LOG.debug("Loaded {} entries of the probe index {}", entries.size(), filePath);
+	}
+	
+	@Nullable
+	MediaProbe.MediaInfo get(@Nonnull SourceFile file) {
+		Entry entry = entries.get(toKey(file));
+		if (entry == null || entry.size() != file.size() || entry.modifiedTime() != getModifiedTime(file)) {
+			return null;
+		}
+		return entry.info();
+	}
+	
+	void put(@Nonnull SourceFile file, @Nonnull MediaProbe.MediaInfo info)
+			throws IOException {
+		String key = toKey(file);
+		Entry entry = new Entry(file.size(), getModifiedTime(file), info);
+		entries.put(key, entry);
+		log.append(toLine(key, entry));
+	}
+	
+	// Rewrites the index with the actual entries only
+	void compact()
+			throws IOException {
+		if (log.getLineCount() <= entries.size() * 2L) {
+			return;
+		}
+		log.rewrite(entries.entrySet().stream()
+				.map(e -> toLine(e.getKey(), e.getValue()))
+				.toList());
+		LOG.debug("Compacted the probe index {} to {} entries", log.getFilePath(), entries.size());
+	}
+	
+	@Override
+	public void close()
+			throws IOException {
+		log.close();
+	}
+	
+	@Nonnull
+	private static String toKey(@Nonnull SourceFile file) {
+		return file.path().toAbsolutePath().normalize().toString();
+	}
+	
+	private static long getModifiedTime(@Nonnull SourceFile file) {
+		return file.attributes().lastModifiedTime().to(TimeUnit.NANOSECONDS);
+	}
+	
+	@Nonnull
+	private static String toLine(@Nonnull String key, @Nonnull Entry entry) {
+		MediaProbe.MediaInfo info = entry.info();
+		return entry.size() + SEPARATOR + entry.modifiedTime()
+				+ SEPARATOR + (info.videoCodec() == null ? NO_CODEC : info.videoCodec())
+				+ SEPARATOR + info.width() + SEPARATOR + info.height() + SEPARATOR + info.frameRate()
+				+ SEPARATOR + info.duration() + SEPARATOR + info.bitRate()
+				+ SEPARATOR + key;
+	}
+	
+	private record Entry(long size, long modifiedTime, @Nonnull MediaProbe.MediaInfo info) {}
+	
+}
@@ -0,0 +1,80 @@
+package ua.od.whcrow.bfpu.cli.actions;
+
+import org.bytedeco.ffmpeg.global.avutil;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Admits the concurrent conversions while their estimated native memory fits the budget. The frames and the codec
+// buffers are allocated off-heap, so the heap limit doesn't bound them.
+class MemoryBudget {
+	
+	// The largest reference buffer of H.264/HEVC decoders plus the frames being decoded
+	static final int DECODER_FRAME_DEPTH = 20;
+	// The lookahead and the B-frames of x264/x265 encoders with their defaults plus the frames being encoded
+	static final int ENCODER_FRAME_DEPTH = 48;
+	// The decoded, resampled and encoded samples
+	static final int AUDIO_BUFFER_COUNT = 3;
+	// The permits are counted in KB, so a budget of terabytes fits them
+	private static final int UNIT = 1024;
+	
+	private final long byteCount;
+	private final int unitCount;
+	// Fair, so a big job isn't starved by the smaller ones arriving after it
+	private final Semaphore units;
+	private final AtomicLong usedBytes = new AtomicLong();
+	private final AtomicLong peakBytes = new AtomicLong();
+	
+	MemoryBudget(long byteCount) {
+		this.byteCount = byteCount;
+		unitCount = (int) Math.min(Math.max(byteCount / UNIT, 1), Integer.MAX_VALUE);
+		units = new Semaphore(unitCount, true);
+	}
+	
+	long getByteCount() {
+		return byteCount;
+	}
+	
+	long getPeakBytes() {
+		return peakBytes.get();
+	}
+	
+	// The decoded frames in the source pixel format, the grabbed ones converted to BGR and the ones passed to the encoder
+	// in the target pixel format. The unknown pixel formats count as YUV 4:2:0.
+	static long estimate(int sourceWidth, int sourceHeight, int sourcePixelFormat, int targetWidth, int targetHeight,
+			int targetPixelFormat, int grabbedFrameCount) {
+		return getFrameSize(sourceWidth, sourceHeight, sourcePixelFormat) * DECODER_FRAME_DEPTH
+				+ getFrameSize(sourceWidth, sourceHeight, avutil.AV_PIX_FMT_BGR24) * grabbedFrameCount
+				+ getFrameSize(targetWidth, targetHeight, targetPixelFormat) * ENCODER_FRAME_DEPTH;
+	}
+	
+	// About a second of the decoded samples as floats, kept by the decoder, the resampler and the encoder
+	static long estimateAudio(int sampleRate, int channelCount) {
+		return (long) Math.max(sampleRate, 0) * Math.max(channelCount, 0) * Float.BYTES * AUDIO_BUFFER_COUNT;
+	}
+	
+	// A job exceeding the whole budget waits for all the others and runs alone
+	void acquire(long footprint)
+			throws InterruptedException {
+		units.acquire(toUnits(footprint));
+		peakBytes.accumulateAndGet(usedBytes.addAndGet(footprint), Math::max);
+	}
+	
+	void release(long footprint) {
+		usedBytes.addAndGet(-footprint);
+		units.release(toUnits(footprint));
+	}
+	
+	private int toUnits(long footprint) {
+		return (int) Math.min(Math.max((footprint + UNIT - 1) / UNIT, 1), unitCount);
+	}
+	
+	private static long getFrameSize(int width, int height, int pixelFormat) {
+		if (width <= 0 || height <= 0) {
+			return 0;
+		}
+		int frameSize = pixelFormat < 0 ? -1 : avutil.av_image_get_buffer_size(pixelFormat, width, height, 1);
+		return frameSize > 0 ? frameSize : (long) width * height * 3 / 2;
+	}
+	
+}
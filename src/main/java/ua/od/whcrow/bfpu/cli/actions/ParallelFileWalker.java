@@ -0,0 +1,190 @@
+package ua.od.whcrow.bfpu.cli.actions;
+
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiPredicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// Lists the directories concurrently on a work-stealing pool and streams the matching files as soon as they are found
+class ParallelFileWalker implements Iterator<SourceFile>, AutoCloseable {
+	
+	private static final int QUEUE_CAPACITY = 4096;
+	private static final Object END = new Object();
+	
+	private final boolean recursive;
+	private final BiPredicate<Path,BasicFileAttributes> filePredicate;
+	private final Path excludedDirPath;
+	private final ForkJoinPool pool;
+	private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+	private volatile boolean closed;
+	private Object next;
+	
+	private ParallelFileWalker(boolean recursive, @Nonnull BiPredicate<Path,BasicFileAttributes> filePredicate,
+			@Nullable Path excludedDirPath, int parallelism) {
+		this.recursive = recursive;
+		this.filePredicate = filePredicate;
+		this.excludedDirPath = excludedDirPath;
+		pool = new ForkJoinPool(parallelism, pool -> {
+			ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+			thread.setName("walker-" + thread.getPoolIndex());
+			thread.setDaemon(true);
+			return thread;
+		}, null, false);
+	}
+	
+	@Nonnull
+	static Stream<SourceFile> walk(@Nonnull Path dirPath, boolean recursive,
+			@Nonnull BiPredicate<Path,BasicFileAttributes> filePredicate, @Nullable Path excludedDirPath,
+			int parallelism) {
+		ParallelFileWalker walker = new ParallelFileWalker(recursive, filePredicate, excludedDirPath, parallelism);
+		walker.pool.execute(walker.new RootTask(dirPath));
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(walker,
+				Spliterator.NONNULL | Spliterator.DISTINCT), false).onClose(walker::close);
+	}
+	
+	@Override
+	public boolean hasNext() {
+		if (next == null) {
+			try {
+				next = queue.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				close();
+				throw new IllegalStateException("Interrupted while walking through the directories", e);
+			}
+		}
+		if (next instanceof RuntimeException e) {
+			close();
+			throw e;
+		}
+		return next != END;
+	}
+	
+	@Nonnull
+	@Override
+	public SourceFile next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		SourceFile file = (SourceFile) next;
+		next = null;
+		return file;
+	}
+	
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		pool.shutdownNow();
+		// Unblock the workers waiting for a free space in the queue
+		queue.clear();
+		try {
+			pool.awaitTermination(1, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		queue.clear();
+	}
+	
+	private void put(@Nonnull Object item) {
+		try {
+			while (!closed) {
+				if (queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private class RootTask extends RecursiveAction {
+		
+		private final Path dirPath;
+		
+		private RootTask(@Nonnull Path dirPath) {
+			this.dirPath = dirPath;
+		}
+		
+		@Override
+		protected void compute() {
+			try {
+				new DirectoryTask(dirPath).invoke();
+				put(END);
+			} catch (RuntimeException e) {
+				put(e);
+			}
+		}
+		
+	}
+	
+	private class DirectoryTask extends RecursiveAction {
+		
+		private final Path dirPath;
+		
+		private DirectoryTask(@Nonnull Path dirPath) {
+			this.dirPath = dirPath;
+		}
+		
+		@Override
+		protected void compute() {
+			List<DirectoryTask> subdirTasks = new ArrayList<>();
+			try (DirectoryStream<Path> entries = Files.newDirectoryStream(dirPath)) {
+				for (Path entry : entries) {
+					if (closed) {
+						return;
+					}
+					BasicFileAttributes attributes;
+					try {
+						attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+					} catch (NoSuchFileException e) {
+						// Removed after listing
+						continue;
+					}
+					if (attributes.isDirectory()) {
+						if (recursive && (excludedDirPath == null
+								|| !entry.toAbsolutePath().normalize().equals(excludedDirPath))) {
+							DirectoryTask subdirTask = new DirectoryTask(entry);
+							subdirTask.fork();
+							subdirTasks.add(subdirTask);
+						}
+					} else if (filePredicate.test(entry, attributes)) {
+						put(new SourceFile(entry, attributes));
+					}
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			} finally {
+				for (DirectoryTask subdirTask : subdirTasks) {
+					subdirTask.join();
+				}
+			}
+		}
+		
+	}
+	
+}
@@ -0,0 +1,165 @@
+package ua.od.whcrow.bfpu.cli.actions;
+
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+import org.apache.commons.lang3.time.DurationFormatUtils;
+import org.slf4j.Logger;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// The workers only bump the counters and the positions of their tasks, while the progress is logged on its own schedule.
+// The remaining time is estimated by the bytes of the files, including the done part of the active tasks.
+class ProgressReporter implements AutoCloseable {
+	
+	private static final String DURATION_FORMAT = "HH:mm:ss";
+	
+	private final String name;
+	private final Logger logger;
+	private final ScheduledExecutorService scheduler;
+	private final LongAdder foundFiles = new LongAdder();
+	private final LongAdder foundBytes = new LongAdder();
+	private final LongAdder doneFiles = new LongAdder();
+	private final LongAdder doneBytes = new LongAdder();
+	private final Set<Task> tasks = ConcurrentHashMap.newKeySet();
+	private volatile boolean allFound;
+	private volatile long start = System.nanoTime();
+	
+	// Nothing is logged without the interval
+	ProgressReporter(@Nonnull String name, @Nullable Duration interval, @Nonnull Logger logger) {
+		this.name = name;
+		this.logger = logger;
+		if (interval == null || interval.isZero() || interval.isNegative()) {
+			scheduler = null;
+			return;
+		}
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory(name + "-progress-");
+		threadFactory.setDaemon(true);
+		scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+		scheduler.scheduleAtFixedRate(this::report, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+	}
+	
+	// The files are counted anew by each group of stages
+	void startFiles() {
+		foundFiles.reset();
+		foundBytes.reset();
+		doneFiles.reset();
+		doneBytes.reset();
+		allFound = false;
+		start = System.nanoTime();
+	}
+	
+	void fileFound(@Nonnull SourceFile file) {
+		foundFiles.increment();
+		foundBytes.add(file.size());
+	}
+	
+	void allFilesFound() {
+		allFound = true;
+	}
+	
+	void fileDone(@Nonnull SourceFile file) {
+		doneFiles.increment();
+		doneBytes.add(file.size());
+	}
+	
+	// The task must be closed once it's done, its position is updated by the worker
+	@Nonnull
+	Task startTask(@Nonnull String description, long byteCount, long lengthMicros) {
+		Task task = new Task(description, byteCount, lengthMicros);
+		tasks.add(task);
+		return task;
+	}
+	
+	void report() {
+		long fileCount = foundFiles.sum();
+		if (fileCount == 0) {
+			return;
+		}
+		long totalBytes = foundBytes.sum();
+		double processedBytes = doneBytes.sum();
+		for (Task task : tasks) {
+			processedBytes += task.byteCount * task.getDoneFraction();
+		}
+		double elapsedSec = Math.max(System.nanoTime() - start, 1) / 1e9;
+		double byteRate = processedBytes / elapsedSec;
+		String eta;
+		if (!allFound) {
+			eta = "unknown while walking";
+		} else if (byteRate > 0) {
+			eta = formatDuration((long) ((totalBytes - processedBytes) / byteRate * 1000));
+		} else {
+			eta = "unknown";
+		}
+		logger.info("Progress of \"{}\": {} of {}{} file/s, {} of {} MB, {} MB/s, ETA {}", name, doneFiles.sum(),
+				fileCount, allFound ? "" : "+", format(processedBytes / 1e6), format(totalBytes / 1e6),
+				format(byteRate / 1e6), eta);
+		for (Task task : tasks) {
+			task.report();
+		}
+	}
+	
+	@Override
+	public void close() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+	}
+	
+	@Nonnull
+	private static String formatDuration(long millis) {
+		return DurationFormatUtils.formatDuration(Math.max(millis, 0), DURATION_FORMAT);
+	}
+	
+	@Nonnull
+	private static String format(double value) {
+		return String.format("%.2f", value);
+	}
+	
+	final class Task implements AutoCloseable {
+		
+		private final String description;
+		private final long byteCount;
+		private final long lengthMicros;
+		private final long start = System.nanoTime();
+		private volatile long positionMicros;
+		
+		private Task(@Nonnull String description, long byteCount, long lengthMicros) {
+			this.description = description;
+			this.byteCount = byteCount;
+			this.lengthMicros = lengthMicros;
+		}
+		
+		// Cheap enough to be called for each frame
+		void update(long positionMicros) {
+			this.positionMicros = positionMicros;
+		}
+		
+		private double getDoneFraction() {
+			return lengthMicros > 0 ? Math.min(Math.max((double) positionMicros / lengthMicros, 0), 1) : 0;
+		}
+		
+		private void report() {
+			long position = Math.max(positionMicros, 0);
+			double elapsedMicros = Math.max(System.nanoTime() - start, 1) / 1e3;
+			double speed = position / elapsedMicros;
+			String eta = speed > 0 && lengthMicros > 0
+					? formatDuration((long) ((lengthMicros - position) / speed / 1000)) : "unknown";
+			logger.info("  {}: {} of {} ({}%), {}x, ETA {}", description, formatDuration(position / 1000),
+					formatDuration(lengthMicros / 1000), Math.round(getDoneFraction() * 100), format(speed), eta);
+		}
+		
+		@Override
+		public void close() {
+			tasks.remove(this);
+		}
+		
+	}
+	
+}
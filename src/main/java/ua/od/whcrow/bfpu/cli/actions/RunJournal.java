@@ -0,0 +1,146 @@
+package ua.od.whcrow.bfpu.cli.actions;
+
+import jakarta.annotation.Nonnull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ua.od.whcrow.bfpu.cli._commons.AppendOnlyLog;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+class RunJournal implements Closeable {
+	
+	private static final Logger LOG = LoggerFactory.getLogger(RunJournal.class);
+	private static final String SEPARATOR = "\t";
+	private static final int FIELD_COUNT = 6;
+	
+	private final String fingerprint;
+	private final AppendOnlyLog log;
+	private final Map<String,Record> records = new ConcurrentHashMap<>();
+	
+	RunJournal(@Nonnull Path filePath, @Nonnull String fingerprint)
+			throws IOException {
+		this.fingerprint = fingerprint;
+		log = new AppendOnlyLog(filePath);
+		List<String> lines = log.readLines();
+		for (String line : lines) {
+			String[] fields = line.split(SEPARATOR, FIELD_COUNT);
+			if (fields.length != FIELD_COUNT) {
+				LOG.warn("Skip a malformed line of the journal {}: {}", filePath, line);
+				continue;
+			}
+			try {
+				records.put(fields[5], new Record(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2],
+						Long.parseLong(fields[3]), fields[4]));
+			} catch (NumberFormatException e) {
+				LOG.warn("Skip a malformed line of the journal {}: {}", filePath, line);
+			}
+		}
+		LOG.debug("Loaded {} records of the journal {}", records.size(), filePath);
+	}
+	
+	@Nonnull
+	static String fingerprint(@Nonnull String options) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(options.getBytes(StandardCharsets.UTF_8));
+			return HexFormat.of().formatHex(hash, 0, 8);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	// Captures the source state before the work starts, so a source changed during the work isn't recorded as done
+	@Nonnull
+	Item start(@Nonnull Path sourceFilePath, @Nonnull Path targetFilePath)
+			throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(sourceFilePath, BasicFileAttributes.class);
+		return new Item(toKey(sourceFilePath), attributes.size(),
+				attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS), toKey(targetFilePath), targetFilePath);
+	}
+	
+	void compact()
+			throws IOException {
+		if (log.getLineCount() <= records.size() * 2L) {
+			return;
+		}
+		log.rewrite(records.entrySet().stream()
+				.map(e -> toLine(e.getKey(), e.getValue()))
+				.toList());
+		LOG.debug("Compacted the journal {} to {} records", log.getFilePath(), records.size());
+	}
+	
+	@Override
+	public void close()
+			throws IOException {
+		log.close();
+	}
+	
+	@Nonnull
+	private static String toKey(@Nonnull Path filePath) {
+		return filePath.toAbsolutePath().normalize().toString();
+	}
+	
+	@Nonnull
+	private static String toLine(@Nonnull String sourceKey, @Nonnull Record record) {
+		return record.sourceSize() + SEPARATOR + record.sourceModifiedTime() + SEPARATOR + record.fingerprint()
+				+ SEPARATOR + record.targetSize() + SEPARATOR + record.target() + SEPARATOR + sourceKey;
+	}
+	
+	private record Record(long sourceSize, long sourceModifiedTime, @Nonnull String fingerprint, long targetSize,
+			@Nonnull String target) {}
+	
+	class Item {
+		
+		private final String sourceKey;
+		private final long sourceSize;
+		private final long sourceModifiedTime;
+		private final String targetKey;
+		private final Path targetFilePath;
+		
+		private Item(@Nonnull String sourceKey, long sourceSize, long sourceModifiedTime, @Nonnull String targetKey,
+				@Nonnull Path targetFilePath) {
+			this.sourceKey = sourceKey;
+			this.sourceSize = sourceSize;
+			this.sourceModifiedTime = sourceModifiedTime;
+			this.targetKey = targetKey;
+			this.targetFilePath = targetFilePath;
+		}
+		
+		// Whether the same work has been completed already and its target is still intact
+		boolean isDone()
+				throws IOException {
+			Record record = records.get(sourceKey);
+			if (record == null || record.sourceSize() != sourceSize || record.sourceModifiedTime() != sourceModifiedTime
+					|| !record.fingerprint().equals(fingerprint) || !record.target().equals(targetKey)) {
+				return false;
+			}
+			return getTargetSize() == record.targetSize();
+		}
+		
+		void done()
+				throws IOException {
+			Record record = new Record(sourceSize, sourceModifiedTime, fingerprint, getTargetSize(), targetKey);
+			records.put(sourceKey, record);
+			log.append(toLine(sourceKey, record));
+		}
+		
+		// Some commands don't produce the target at all, -1 stands for that
+		private long getTargetSize()
+				throws IOException {
+			return Files.exists(targetFilePath) ? Files.size(targetFilePath) : -1;
+		}
+		
+	}
+	
+}
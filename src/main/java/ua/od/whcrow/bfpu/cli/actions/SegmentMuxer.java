@@ -0,0 +1,208 @@
+package ua.od.whcrow.bfpu.cli.actions;
+
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avformat.AVIOContext;
+import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.avutil.AVDictionary;
+import org.bytedeco.ffmpeg.avutil.AVRational;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avformat;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.javacpp.PointerPointer;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// Joins the video segments encoded separately one after another and adds the audio encoded in one piece, copying the
+// packets as they are. Each segment is shifted by its start time, so the joined video keeps in sync with the audio.
+final class SegmentMuxer {
+	
+	private static final AVRational MICROSECONDS = avutil.av_make_q(1, 1000000);
+	
+	private SegmentMuxer() {
+	}
+	
+	static void mux(@Nonnull List<Path> videoSegmentPaths, @Nonnull long[] segmentStartTimes,
+			@Nullable Path audioPath, @Nonnull Path targetFilePath, @Nullable String format,
+			@Nullable Map<String,String> options)
+			throws FFmpegFrameRecorder.Exception {
+		List<AVFormatContext> videoInputs = new ArrayList<>();
+		AVFormatContext audioInput = null;
+		AVFormatContext output = null;
+		AVPacket videoPacket = avcodec.av_packet_alloc();
+		AVPacket audioPacket = avcodec.av_packet_alloc();
+		try {
+			for (Path videoSegmentPath : videoSegmentPaths) {
+				videoInputs.add(openInput(videoSegmentPath));
+			}
+			if (audioPath != null) {
+				audioInput = openInput(audioPath);
+			}
+			output = new AVFormatContext(null);
+			check(avformat.avformat_alloc_output_context2(output, null, format, targetFilePath.toString()),
+					"allocate the output context for " + targetFilePath);
+			copyMetadata(videoInputs.get(0), output);
+			AVStream videoStream = addStream(output, videoInputs.get(0).streams(0));
+			AVStream audioStream = audioInput == null ? null : addStream(output, audioInput.streams(0));
+			if ((output.oformat().flags() & avformat.AVFMT_NOFILE) == 0) {
+				AVIOContext ioContext = new AVIOContext(null);
+				check(avformat.avio_open(ioContext, targetFilePath.toString(), avformat.AVIO_FLAG_WRITE),
+						"open " + targetFilePath);
+				output.pb(ioContext);
+			}
+			writeHeader(output, options);
+			PacketReader videoReader = new PacketReader(videoInputs, segmentStartTimes, videoStream, videoPacket);
+			PacketReader audioReader = audioInput == null
+					? null : new PacketReader(List.of(audioInput), new long[]{0}, audioStream, audioPacket);
+			boolean videoRead = videoReader.read();
+			boolean audioRead = audioReader != null && audioReader.read();
+			// Interleaved by the decoding time, so the muxer doesn't have to buffer a whole stream
+			while (videoRead || audioRead) {
+				if (videoRead && (!audioRead || videoReader.compareTo(audioReader) <= 0)) {
+					check(avformat.av_interleaved_write_frame(output, videoPacket), "write a video packet");
+					videoRead = videoReader.read();
+				} else {
+					check(avformat.av_interleaved_write_frame(output, audioPacket), "write an audio packet");
+					audioRead = audioReader.read();
+				}
+			}
+			check(avformat.av_write_trailer(output), "finish " + targetFilePath);
+		} finally {
+			avcodec.av_packet_free(videoPacket);
+			avcodec.av_packet_free(audioPacket);
+			for (AVFormatContext videoInput : videoInputs) {
+				avformat.avformat_close_input(videoInput);
+			}
+			if (audioInput != null) {
+				avformat.avformat_close_input(audioInput);
+			}
+			if (output != null && !output.isNull()) {
+				if (output.pb() != null && (output.oformat().flags() & avformat.AVFMT_NOFILE) == 0) {
+					avformat.avio_closep(output.pb());
+				}
+				avformat.avformat_free_context(output);
+			}
+		}
+	}
+	
+	@Nonnull
+	private static AVFormatContext openInput(@Nonnull Path filePath)
+			throws FFmpegFrameRecorder.Exception {
+		AVFormatContext input = new AVFormatContext(null);
+		check(avformat.avformat_open_input(input, filePath.toString(), null, null), "open " + filePath);
+		check(avformat.avformat_find_stream_info(input, (PointerPointer<?>) null),
+				"read the streams of " + filePath);
+		return input;
+	}
+	
+	@Nonnull
+	private static AVStream addStream(@Nonnull AVFormatContext output, @Nonnull AVStream inputStream)
+			throws FFmpegFrameRecorder.Exception {
+		AVStream stream = avformat.avformat_new_stream(output, null);
+		if (stream == null) {
+			throw new FFmpegFrameRecorder.Exception("Failed to add a stream to the output");
+		}
+		check(avcodec.avcodec_parameters_copy(stream.codecpar(), inputStream.codecpar()),
+				"copy the stream parameters");
+		// Let the muxer choose the tag, as it does for the segments
+		stream.codecpar().codec_tag(0);
+		stream.time_base(inputStream.time_base());
+		copyMetadata(inputStream, stream);
+		return stream;
+	}
+	
+	private static void copyMetadata(@Nonnull AVFormatContext input, @Nonnull AVFormatContext output) {
+		AVDictionary metadata = new AVDictionary(null);
+		avutil.av_dict_copy(metadata, input.metadata(), 0);
+		output.metadata(metadata);
+	}
+	
+	private static void copyMetadata(@Nonnull AVStream input, @Nonnull AVStream output) {
+		AVDictionary metadata = new AVDictionary(null);
+		avutil.av_dict_copy(metadata, input.metadata(), 0);
+		output.metadata(metadata);
+	}
+	
+	private static void writeHeader(@Nonnull AVFormatContext output, @Nullable Map<String,String> options)
+			throws FFmpegFrameRecorder.Exception {
+		AVDictionary optionDictionary = new AVDictionary(null);
+		try {
+			if (options != null) {
+				options.forEach((name, value) -> avutil.av_dict_set(optionDictionary, name, value, 0));
+			}
+			check(avformat.avformat_write_header(output, optionDictionary), "write the header");
+		} finally {
+			avutil.av_dict_free(optionDictionary);
+		}
+	}
+	
+	private static void check(int result, @Nonnull String action)
+			throws FFmpegFrameRecorder.Exception {
+		if (result < 0) {
+			throw new FFmpegFrameRecorder.Exception("Failed to " + action + " (error " + result + ")");
+		}
+	}
+	
+	// Reads the packets of the first stream of the inputs one after another, in the time base of the output stream
+	private static final class PacketReader {
+		
+		private final List<AVFormatContext> inputs;
+		private final long[] startTimes;
+		private final AVStream outputStream;
+		private final AVPacket packet;
+		private int inputIndex;
+		private long offset;
+		
+		private PacketReader(@Nonnull List<AVFormatContext> inputs, @Nonnull long[] startTimes,
+				@Nonnull AVStream outputStream, @Nonnull AVPacket packet) {
+			this.inputs = inputs;
+			this.startTimes = startTimes;
+			this.outputStream = outputStream;
+			this.packet = packet;
+			offset = avutil.av_rescale_q(startTimes[0], MICROSECONDS, outputStream.time_base());
+		}
+		
+		private boolean read()
+				throws FFmpegFrameRecorder.Exception {
+			while (inputIndex < inputs.size()) {
+				AVFormatContext input = inputs.get(inputIndex);
+				int result = avformat.av_read_frame(input, packet);
+				if (result == avutil.AVERROR_EOF) {
+					if (++inputIndex < inputs.size()) {
+						offset = avutil.av_rescale_q(startTimes[inputIndex], MICROSECONDS, outputStream.time_base());
+					}
+					continue;
+				}
+				check(result, "read a packet");
+				if (packet.stream_index() != 0) {
+					avcodec.av_packet_unref(packet);
+					continue;
+				}
+				avcodec.av_packet_rescale_ts(packet, input.streams(0).time_base(), outputStream.time_base());
+				if (packet.pts() != avutil.AV_NOPTS_VALUE) {
+					packet.pts(packet.pts() + offset);
+				}
+				if (packet.dts() != avutil.AV_NOPTS_VALUE) {
+					packet.dts(packet.dts() + offset);
+				}
+				packet.stream_index(outputStream.index());
+				packet.pos(-1);
+				return true;
+			}
+			return false;
+		}
+		
+		private int compareTo(@Nonnull PacketReader other) {
+			return avutil.av_compare_ts(packet.dts(), outputStream.time_base(), other.packet.dts(),
+					other.outputStream.time_base());
+		}
+		
+	}
+	
+}
@@ -0,0 +1,14 @@
+package ua.od.whcrow.bfpu.cli.actions;
+
+import jakarta.annotation.Nonnull;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+record SourceFile(@Nonnull Path path, @Nonnull BasicFileAttributes attributes) {
+	
+	long size() {
+		return attributes.size();
+	}
+	
+}
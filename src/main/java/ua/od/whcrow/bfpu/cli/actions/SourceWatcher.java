@@ -0,0 +1,215 @@
+package ua.od.whcrow.bfpu.cli.actions;
+
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiPredicate;
+
+// Watches the source directory for the created and modified files and hands them over once they're stable, i.e. neither
+// an event nor a change of the size or the modification time has come for the debounce time, so a file still being
+// written isn't processed.
+class SourceWatcher implements AutoCloseable {
+	
+	private static final Logger LOG = LoggerFactory.getLogger(SourceWatcher.class);
+	
+	private final boolean recursive;
+	private final BiPredicate<Path,BasicFileAttributes> filePredicate;
+	private final Set<Path> excludedDirPaths;
+	private final long debounceNanos;
+	private final WatchService watchService;
+	private final Map<WatchKey,Path> dirPaths = new HashMap<>();
+	// In the order the files have come, so the earlier ones are handed over first
+	private final Map<Path,PendingFile> pendingFiles = new LinkedHashMap<>();
+	private volatile boolean closed;
+	
+	// The excluded dirs are given as normalized absolute paths
+	SourceWatcher(@Nonnull Path dirPath, boolean recursive, @Nonnull BiPredicate<Path,BasicFileAttributes> filePredicate,
+			@Nonnull Set<Path> excludedDirPaths, @Nonnull Duration debounce)
+			throws IOException {
+		this.recursive = recursive;
+		this.filePredicate = filePredicate;
+		this.excludedDirPaths = excludedDirPaths;
+		debounceNanos = debounce.toNanos();
+		watchService = dirPath.getFileSystem().newWatchService();
+		try {
+			register(dirPath, false);
+		} catch (IOException e) {
+			watchService.close();
+			throw e;
+		}
+	}
+	
+	// Blocks until some files are stable, returns null once the watcher is closed
+	@Nullable
+	List<SourceFile> take()
+			throws IOException, InterruptedException {
+		while (true) {
+			List<SourceFile> stableFiles = collectStableFiles();
+			if (!stableFiles.isEmpty()) {
+				return stableFiles;
+			}
+			WatchKey key;
+			try {
+				key = pendingFiles.isEmpty()
+						? watchService.take()
+						: watchService.poll(getNanosToNextCheck(), TimeUnit.NANOSECONDS);
+			} catch (ClosedWatchServiceException e) {
+				return null;
+			}
+			// Takes all the keys signalled meanwhile
+			while (key != null) {
+				handle(key);
+				key = watchService.poll();
+			}
+		}
+	}
+	
+	boolean isClosed() {
+		return closed;
+	}
+	
+	// Unblocks the thread waiting for the files
+	@Override
+	public void close()
+			throws IOException {
+		closed = true;
+		watchService.close();
+	}
+	
+	private void handle(@Nonnull WatchKey key)
+			throws IOException {
+		Path dirPath = dirPaths.get(key);
+		if (dirPath == null) {
+			key.cancel();
+			return;
+		}
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				// Some events are lost, so all the files are checked
+				LOG.warn("Too many changes in {} at once, rescanning it", dirPath);
+				register(dirPath, true);
+				continue;
+			}
+			Path path = dirPath.resolve((Path) event.context());
+			BasicFileAttributes attributes;
+			try {
+				attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			} catch (NoSuchFileException e) {
+				// Removed or renamed meanwhile
+				pendingFiles.remove(path);
+				continue;
+			}
+			if (attributes.isDirectory()) {
+				// The files created before the dir is registered don't produce any events
+				if (recursive && event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+					register(path, true);
+				}
+			} else if (filePredicate.test(path, attributes)) {
+				addPendingFile(path, attributes);
+			}
+		}
+		if (!key.reset()) {
+			dirPaths.remove(key);
+		}
+	}
+	
+	private void register(@Nonnull Path dirPath, boolean addFiles)
+			throws IOException {
+		if (excludedDirPaths.contains(dirPath.toAbsolutePath().normalize())) {
+			return;
+		}
+		WatchKey key = dirPath.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+		dirPaths.put(key, dirPath);
+		if (!addFiles && !recursive) {
+			return;
+		}
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(dirPath)) {
+			for (Path entry : entries) {
+				BasicFileAttributes attributes;
+				try {
+					attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+				} catch (NoSuchFileException e) {
+					continue;
+				}
+				if (attributes.isDirectory()) {
+					if (recursive) {
+						register(entry, addFiles);
+					}
+				} else if (addFiles && filePredicate.test(entry, attributes)) {
+					addPendingFile(entry, attributes);
+				}
+			}
+		}
+	}
+	
+	private void addPendingFile(@Nonnull Path filePath, @Nonnull BasicFileAttributes attributes) {
+		pendingFiles.put(filePath, new PendingFile(attributes, System.nanoTime()));
+	}
+	
+	@Nonnull
+	private List<SourceFile> collectStableFiles()
+			throws IOException {
+		List<SourceFile> stableFiles = new ArrayList<>();
+		long now = System.nanoTime();
+		Iterator<Map.Entry<Path,PendingFile>> iterator = pendingFiles.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<Path,PendingFile> entry = iterator.next();
+			PendingFile pendingFile = entry.getValue();
+			if (now - pendingFile.since() < debounceNanos) {
+				continue;
+			}
+			BasicFileAttributes attributes;
+			try {
+				attributes = Files.readAttributes(entry.getKey(), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			} catch (NoSuchFileException e) {
+				iterator.remove();
+				continue;
+			}
+			if (attributes.size() != pendingFile.attributes().size()
+					|| !attributes.lastModifiedTime().equals(pendingFile.attributes().lastModifiedTime())) {
+				// Changed without an event, e.g. on a network file system
+				entry.setValue(new PendingFile(attributes, now));
+				continue;
+			}
+			iterator.remove();
+			stableFiles.add(new SourceFile(entry.getKey(), attributes));
+		}
+		return stableFiles;
+	}
+	
+	private long getNanosToNextCheck() {
+		long now = System.nanoTime();
+		long nanos = debounceNanos;
+		for (PendingFile pendingFile : pendingFiles.values()) {
+			nanos = Math.min(nanos, pendingFile.since() + debounceNanos - now);
+		}
+		return Math.max(nanos, 1);
+	}
+	
+	private record PendingFile(@Nonnull BasicFileAttributes attributes, long since) {}
+	
+}
@@ -0,0 +1,171 @@
+package ua.od.whcrow.bfpu.cli.actions;
+
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+import org.slf4j.Logger;
+import ua.od.whcrow.bfpu.cli._commons.functions.e.FunctionE;
+import ua.od.whcrow.bfpu.cli.exceptions.ActionRunException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Maps the sources of an action run to the targets, so no two sources are written to the same target. The files planned
+// up front are checked for collisions all at once and their target dirs are created before any work starts, the other
+// ones claim their targets as they come. Either way, each target dir is created once per run, or per batch of the watch
+// mode, where the targets claimed by the earlier batches stay taken while their sources exist.
+class TargetPlan {
+	
+	// The earlier claims are checked for the deleted sources once they double since the last check
+	private static final int MIN_EARLIER_CLAIMS_TO_PRUNE = 1024;
+	
+	private final String actionName;
+	private final Map<Path,Path> plannedTargets = new ConcurrentHashMap<>();
+	private final Map<Path,String> collisions = new ConcurrentHashMap<>();
+	// Keyed by the normalized absolute target path
+	private final Map<Path,Path> claimedTargets = new ConcurrentHashMap<>();
+	private final Map<Path,Path> earlierClaims = new ConcurrentHashMap<>();
+	private final Map<Path,Boolean> targetDirs = new ConcurrentHashMap<>();
+	private int prunedEarlierClaimCount;
+	
+	TargetPlan(@Nonnull String actionName) {
+		this.actionName = actionName;
+	}
+	
+	// In the fail-tolerant mode, the colliding sources fail when they're processed, while the other ones go on.
+	// The files may be planned in several batches of a run, e.g. in the watch mode, so a target claimed by an earlier
+	// batch is a collision too, while its source exists.
+	void plan(@Nonnull List<SourceFile> files, @Nonnull FunctionE<Path,Path,ActionRunException> targetMapper,
+			boolean failTolerant, @Nonnull Logger logger)
+			throws ActionRunException {
+		Map<Path,List<Path>> sourcesByTarget = new LinkedHashMap<>();
+		Map<Path,Path> targets = new LinkedHashMap<>();
+		for (SourceFile file : files) {
+			Path targetFilePath = targetMapper.apply(file.path());
+			targets.put(file.path(), targetFilePath);
+			sourcesByTarget.computeIfAbsent(getKey(targetFilePath), key -> new ArrayList<>(1)).add(file.path());
+		}
+		int collisionCount = 0;
+		for (Map.Entry<Path,List<Path>> entry : sourcesByTarget.entrySet()) {
+			List<Path> sourceFilePaths = entry.getValue();
+			if (sourceFilePaths.size() == 1) {
+				Path sourceFilePath = sourceFilePaths.get(0);
+				Path claimant = claim(entry.getKey(), sourceFilePath);
+				if (claimant == null) {
+					plannedTargets.put(sourceFilePath, targets.get(sourceFilePath));
+					collisions.remove(sourceFilePath);
+					continue;
+				}
+				collisionCount++;
+				String message = "Target " + targets.get(sourceFilePath) + " of " + sourceFilePath + " is taken by "
+						+ claimant;
+				logger.warn(message);
+				plannedTargets.remove(sourceFilePath);
+				collisions.put(sourceFilePath, message);
+				continue;
+			}
+			collisionCount++;
+			String message = "Target " + targets.get(sourceFilePaths.get(0)) + " is shared by " + sourceFilePaths;
+			logger.warn(message);
+			for (Path sourceFilePath : sourceFilePaths) {
+				plannedTargets.remove(sourceFilePath);
+				collisions.put(sourceFilePath, message);
+			}
+		}
+		if (collisionCount > 0 && !failTolerant) {
+			throw new ActionRunException(actionName, collisionCount + " target/s are shared by several sources, "
+					+ "nothing is processed");
+		}
+		// Sorted, so a parent dir precedes its sub-dirs
+		for (Path targetDirPath : new TreeSet<>(plannedTargets.values().stream()
+				.map(Path::getParent).filter(Objects::nonNull).toList())) {
+			createTargetDir(targetDirPath);
+		}
+		logger.debug("Planned {} target/s, {} collision/s", plannedTargets.size(), collisionCount);
+	}
+	
+	@Nonnull
+	Path getTarget(@Nonnull Path sourceFilePath, @Nonnull FunctionE<Path,Path,ActionRunException> targetMapper)
+			throws ActionRunException {
+		Path targetFilePath = plannedTargets.get(sourceFilePath);
+		if (targetFilePath != null) {
+			return targetFilePath;
+		}
+		String collision = collisions.get(sourceFilePath);
+		if (collision != null) {
+			throw new ActionRunException(actionName, collision);
+		}
+		targetFilePath = targetMapper.apply(sourceFilePath);
+		Path claimant = claim(getKey(targetFilePath), sourceFilePath);
+		if (claimant != null) {
+			throw new ActionRunException(actionName, "Target " + targetFilePath + " of " + sourceFilePath
+					+ " is taken by " + claimant);
+		}
+		if (targetFilePath.getParent() != null) {
+			createTargetDir(targetFilePath.getParent());
+		}
+		return targetFilePath;
+	}
+	
+	// Once the files of a watch batch are processed, their targets are kept claimed, while the rest of the plan is
+	// dropped, so a target dir deleted meanwhile is created again
+	void finishBatch() {
+		earlierClaims.putAll(claimedTargets);
+		claimedTargets.clear();
+		plannedTargets.clear();
+		collisions.clear();
+		targetDirs.clear();
+		if (earlierClaims.size() >= Math.max(prunedEarlierClaimCount * 2, MIN_EARLIER_CLAIMS_TO_PRUNE)) {
+			earlierClaims.values().removeIf(Files::notExists);
+			prunedEarlierClaimCount = earlierClaims.size();
+		}
+	}
+	
+	// Returns the other source the target is taken by, or null if it's claimed by the given one. A target claimed by
+	// an earlier batch is released if its source doesn't exist anymore, e.g. clip.avi replaced by clip.mov.
+	@Nullable
+	private Path claim(@Nonnull Path key, @Nonnull Path sourceFilePath) {
+		Path claimant = claimedTargets.putIfAbsent(key, sourceFilePath);
+		if (claimant != null) {
+			return claimant.equals(sourceFilePath) ? null : claimant;
+		}
+		Path earlierClaimant = earlierClaims.get(key);
+		if (earlierClaimant == null || earlierClaimant.equals(sourceFilePath) || Files.notExists(earlierClaimant)) {
+			return null;
+		}
+		claimedTargets.remove(key, sourceFilePath);
+		return earlierClaimant;
+	}
+	
+	// The concurrent callers wait for the one creating the dir
+	private void createTargetDir(@Nonnull Path targetDirPath)
+			throws ActionRunException {
+		try {
+			targetDirs.computeIfAbsent(targetDirPath, dirPath -> {
+				try {
+					Files.createDirectories(dirPath);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				return Boolean.TRUE;
+			});
+		} catch (UncheckedIOException e) {
+			throw new ActionRunException(actionName, "Failed to create a target sub-dir/s " + targetDirPath,
+					e.getCause());
+		}
+	}
+	
+	@Nonnull
+	private static Path getKey(@Nonnull Path targetFilePath) {
+		return targetFilePath.toAbsolutePath().normalize();
+	}
+	
+}
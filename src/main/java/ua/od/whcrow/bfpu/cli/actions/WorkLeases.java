@@ -0,0 +1,223 @@
+package ua.od.whcrow.bfpu.cli.actions;
+
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+import org.slf4j.Logger;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Lets the processes sharing the destination, on one host or many, take the files one by one. A file is claimed by
+// creating its lease file exclusively, the lease is kept alive by touching the file and it's turned into a done marker
+// once the file is processed. A lease not touched for the timeout, e.g. of a crashed process, is taken over.
+// A file is processed at least once: a process stalled for the timeout may overlap with the one taking over its lease.
+// A done marker left before the leases were opened, e.g. by an earlier run, is told apart, as its targets may have been
+// deleted since.
+class WorkLeases implements AutoCloseable {
+	
+	private static final String LEASE_FILE_EXTENSION = ".lease";
+	private static final String DONE_FILE_EXTENSION = ".done";
+	private static final String STALE_FILE_EXTENSION = ".stale";
+	
+	private final Path dirPath;
+	private final long timeoutMillis;
+	private final String owner;
+	private final Logger logger;
+	private final long openedMillis = System.currentTimeMillis();
+	private final Set<Path> heldLeasePaths = ConcurrentHashMap.newKeySet();
+	private final ScheduledExecutorService scheduler;
+	
+	WorkLeases(@Nonnull Path dirPath, @Nonnull Duration timeout, @Nonnull String owner, @Nonnull Logger logger)
+			throws IOException {
+		this.dirPath = dirPath;
+		timeoutMillis = timeout.toMillis();
+		this.owner = owner;
+		this.logger = logger;
+		Files.createDirectories(dirPath);
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory(dirPath.getFileName() + "-lease-");
+		threadFactory.setDaemon(true);
+		scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+		long renewalMillis = getCheckInterval().toMillis();
+		scheduler.scheduleWithFixedDelay(this::renew, renewalMillis, renewalMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	// The same file of the same size and modification time, whatever node finds it
+	@Nonnull
+	static String toKey(@Nonnull String relativeName, @Nonnull SourceFile file) {
+		String id = relativeName + '\t' + file.size() + '\t' + file.attributes().lastModifiedTime().toMillis();
+		return UUID.nameUUIDFromBytes(id.getBytes(StandardCharsets.UTF_8)).toString();
+	}
+	
+	// The leases are renewed several times per timeout, and the leases of the other nodes are checked as often
+	@Nonnull
+	Duration getCheckInterval() {
+		return Duration.ofMillis(Math.max(timeoutMillis / 3, 1));
+	}
+	
+	@Nonnull
+	State claim(@Nonnull String key)
+			throws IOException {
+		Path leasePath = dirPath.resolve(key + LEASE_FILE_EXTENSION);
+		Path donePath = dirPath.resolve(key + DONE_FILE_EXTENSION);
+		while (true) {
+			State doneState = getDoneState(donePath);
+			if (doneState != null) {
+				return doneState;
+			}
+			try {
+				Files.writeString(leasePath, owner, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+				// The lease is turned into the done marker at once, so the marker exists if it's been done meanwhile
+				doneState = getDoneState(donePath);
+				if (doneState != null) {
+					Files.deleteIfExists(leasePath);
+					return doneState;
+				}
+				// All the leases are aged by the clocks of the nodes, as they're renewed by them
+				Files.setLastModifiedTime(leasePath, FileTime.fromMillis(System.currentTimeMillis()));
+				heldLeasePaths.add(leasePath);
+				return State.CLAIMED;
+			} catch (FileAlreadyExistsException e) {
+				// Claimed by another node
+			}
+			FileTime renewed;
+			try {
+				renewed = Files.getLastModifiedTime(leasePath);
+			} catch (NoSuchFileException e) {
+				continue;
+			}
+			if (!isExpired(renewed) || !takeOver(leasePath)) {
+				return State.TAKEN;
+			}
+		}
+	}
+	
+	// Marks the processed file done, or lets the other nodes retry the failed one
+	void finish(@Nonnull String key, boolean done)
+			throws IOException {
+		Path leasePath = dirPath.resolve(key + LEASE_FILE_EXTENSION);
+		heldLeasePaths.remove(leasePath);
+		try {
+			if (done) {
+				// Dated by the completion rather than the last renewal, so it's newer than the leases opened before
+				Files.setLastModifiedTime(leasePath, FileTime.fromMillis(System.currentTimeMillis()));
+				Files.move(leasePath, dirPath.resolve(key + DONE_FILE_EXTENSION), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} else {
+				Files.delete(leasePath);
+			}
+		} catch (NoSuchFileException e) {
+			logger.warn("The lease {} has been taken over while it was held", leasePath);
+		}
+	}
+	
+	// Drops the done marker left before the leases were opened, so the file is claimed again. A marker left since, e.g.
+	// by another node redoing the file meanwhile, is kept.
+	void reopen(@Nonnull String key)
+			throws IOException {
+		Path donePath = dirPath.resolve(key + DONE_FILE_EXTENSION);
+		if (getDoneState(donePath) == State.DONE_BEFORE) {
+			logger.debug("Reopening the done marker {}", donePath);
+			Files.deleteIfExists(donePath);
+		}
+	}
+	
+	@Nullable
+	private State getDoneState(@Nonnull Path donePath)
+			throws IOException {
+		try {
+			return Files.getLastModifiedTime(donePath).toMillis() < openedMillis ? State.DONE_BEFORE : State.DONE;
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+	
+	// The expired lease is renamed away, so only one of the nodes taking it over at once succeeds
+	private boolean takeOver(@Nonnull Path leasePath)
+			throws IOException {
+		Path stalePath = dirPath.resolve(leasePath.getFileName() + "." + UUID.randomUUID() + STALE_FILE_EXTENSION);
+		try {
+			Files.move(leasePath, stalePath, StandardCopyOption.ATOMIC_MOVE);
+		} catch (NoSuchFileException e) {
+			// Taken over or finished by another node, the lease is checked again
+			return true;
+		}
+		// Another node may have taken it over and claimed it anew right before it's renamed
+		if (!isExpired(Files.getLastModifiedTime(stalePath))) {
+			Files.move(stalePath, leasePath, StandardCopyOption.ATOMIC_MOVE);
+			return false;
+		}
+		logger.info("Taking over the expired lease {} of {}", leasePath, readOwner(stalePath));
+		Files.delete(stalePath);
+		return true;
+	}
+	
+	@Nonnull
+	private static String readOwner(@Nonnull Path leasePath) {
+		try {
+			return Files.readString(leasePath, StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			return "an unknown node";
+		}
+	}
+	
+	private boolean isExpired(@Nonnull FileTime renewed) {
+		return System.currentTimeMillis() - renewed.toMillis() > timeoutMillis;
+	}
+	
+	private void renew() {
+		FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+		for (Path leasePath : heldLeasePaths) {
+			try {
+				Files.setLastModifiedTime(leasePath, now);
+			} catch (NoSuchFileException e) {
+				// Finished meanwhile, or taken over by another node after this one has stalled
+				if (heldLeasePaths.remove(leasePath)) {
+					logger.warn("Lost the lease {}", leasePath);
+				}
+			} catch (IOException e) {
+				logger.warn("Failed to renew the lease {}", leasePath, e);
+			}
+		}
+	}
+	
+	// The leases still held, e.g. of the files left after a failure, are released
+	@Override
+	public void close() {
+		scheduler.shutdownNow();
+		for (Path leasePath : heldLeasePaths) {
+			try {
+				Files.deleteIfExists(leasePath);
+			} catch (IOException e) {
+				logger.warn("Failed to release the lease {}", leasePath, e);
+			}
+		}
+		heldLeasePaths.clear();
+	}
+	
+	enum State {
+		// By this node, which must finish it
+		CLAIMED,
+		// By another node which is alive
+		TAKEN,
+		// Since the leases were opened
+		DONE,
+		// Before the leases were opened
+		DONE_BEFORE
+	}
+	
+}
@@ -0,0 +1,37 @@
+package ua.od.whcrow.bfpu.cli._commons;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CommandLineUtilTests {
+	
+	@Test
+	void splitsByWhitespaces() {
+		assertEquals(List.of("java", "FileCopier.java", "%source%", "%target%"),
+				CommandLineUtil.split("  java FileCopier.java\t%source%   %target% "));
+	}
+	
+	@Test
+	void keepsQuotedWhitespaces() {
+		assertEquals(List.of("sh", "-c", "cp \"$0\" \"$1\"", "%source%"),
+				CommandLineUtil.split("sh -c 'cp \"$0\" \"$1\"' %source%"));
+		assertEquals(List.of("C:\\Program Files\\app.exe", "-o", ""),
+				CommandLineUtil.split("\"C:\\Program Files\\app.exe\" -o \"\""));
+	}
+	
+	@Test
+	void unescapesQuotesOnly() {
+		assertEquals(List.of("say", "\"hi\"", "C:\\dir\\file"),
+				CommandLineUtil.split("say \\\"hi\\\" C:\\dir\\file"));
+	}
+	
+	@Test
+	void rejectsUnclosedQuote() {
+		assertThrows(IllegalArgumentException.class, () -> CommandLineUtil.split("echo 'oops"));
+	}
+	
+}
@@ -0,0 +1,122 @@
+package ua.od.whcrow.bfpu.cli.actions;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+import ua.od.whcrow.bfpu.cli.exceptions.ActionException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BySizeDeduplicatorTests {
+	
+	@TempDir
+	Path dirPath;
+	
+	@Test
+	void reportsWithoutResolving()
+			throws IOException, ActionException {
+		SourceFile keeper = createFile("a.bin", "same", 1000);
+		SourceFile duplicate = createFile("b/a.bin", "same", 1000);
+		SourceFile other = createFile("c.bin", "diff", 1000);
+		List<SourceFile> kept = deduplicate(BySizeDeduplicatorProperties.Resolution.REPORT,
+				BySizeDeduplicatorProperties.Keeper.FIRST_PATH, List.of(duplicate, keeper, other));
+		assertEquals(List.of(keeper, other), kept);
+		assertTrue(Files.exists(duplicate.path()));
+		assertFalse(Files.exists(getUndoLogFilePath()));
+	}
+	
+	@Test
+	void movesDuplicateKeepingFirstPath()
+			throws IOException, ActionException {
+		SourceFile keeper = createFile("a.bin", "same", 1000);
+		SourceFile duplicate = createFile("b/a.bin", "same", 2000);
+		List<SourceFile> kept = deduplicate(BySizeDeduplicatorProperties.Resolution.MOVE,
+				BySizeDeduplicatorProperties.Keeper.FIRST_PATH, List.of(duplicate, keeper));
+		Path targetFilePath = dirPath.resolve("dst/b/a.bin");
+		assertEquals(List.of(keeper), kept);
+		assertFalse(Files.exists(duplicate.path()));
+		assertEquals("same", Files.readString(targetFilePath));
+		assertEquals(List.of("MOVE\t2000\t" + targetFilePath.toAbsolutePath() + "\t"
+				+ duplicate.path().toAbsolutePath()), Files.readAllLines(getUndoLogFilePath()));
+	}
+	
+	@Test
+	void deletesDuplicateKeepingShortestPath()
+			throws IOException, ActionException {
+		SourceFile duplicate = createFile("a-long-name.bin", "same", 1000);
+		SourceFile keeper = createFile("z.bin", "same", 2000);
+		deduplicate(BySizeDeduplicatorProperties.Resolution.DELETE, BySizeDeduplicatorProperties.Keeper.SHORTEST_PATH,
+				List.of(duplicate, keeper));
+		assertFalse(Files.exists(duplicate.path()));
+		assertTrue(Files.exists(keeper.path()));
+		assertEquals(List.of("DELETE\t1000\t" + keeper.path().toAbsolutePath() + "\t"
+				+ duplicate.path().toAbsolutePath()), Files.readAllLines(getUndoLogFilePath()));
+	}
+	
+	@Test
+	void hardlinksDuplicateKeepingNewestOnce()
+			throws IOException, ActionException {
+		SourceFile duplicate = createFile("a.bin", "same", 1000);
+		SourceFile keeper = createFile("b.bin", "same", 2000);
+		deduplicate(BySizeDeduplicatorProperties.Resolution.HARDLINK, BySizeDeduplicatorProperties.Keeper.NEWEST,
+				List.of(duplicate, keeper));
+		assertTrue(Files.isSameFile(duplicate.path(), keeper.path()));
+		// The existing hardlink is left alone on the next run
+		deduplicate(BySizeDeduplicatorProperties.Resolution.HARDLINK, BySizeDeduplicatorProperties.Keeper.NEWEST,
+				List.of(readFile(duplicate.path()), readFile(keeper.path())));
+		assertEquals(List.of("HARDLINK\t1000\t" + keeper.path().toAbsolutePath() + "\t"
+				+ duplicate.path().toAbsolutePath()), Files.readAllLines(getUndoLogFilePath()));
+	}
+	
+	@Test
+	void skipsDuplicateChangedSinceListed()
+			throws IOException, ActionException {
+		SourceFile keeper = createFile("a.bin", "same", 1000);
+		SourceFile duplicate = createFile("b.bin", "same", 1000);
+		Files.setLastModifiedTime(duplicate.path(), FileTime.fromMillis(3000));
+		deduplicate(BySizeDeduplicatorProperties.Resolution.DELETE, BySizeDeduplicatorProperties.Keeper.FIRST_PATH,
+				List.of(keeper, duplicate));
+		assertTrue(Files.exists(duplicate.path()));
+		assertEquals(List.of(), Files.readAllLines(getUndoLogFilePath()));
+	}
+	
+	private List<SourceFile> deduplicate(BySizeDeduplicatorProperties.Resolution resolution,
+			BySizeDeduplicatorProperties.Keeper keeper, List<SourceFile> files)
+			throws ActionException {
+		BySizeDeduplicator deduplicator = new BySizeDeduplicator(new BySizeDeduplicatorProperties(
+				DataSize.ofKilobytes(64), false, false, resolution, keeper));
+		TestSetting setting = new TestSetting(dirPath.resolve("src"), dirPath.resolve("dst"));
+		try (ActionStage stage = deduplicator.openStage(setting)) {
+			return stage.filter(new ArrayList<>(files));
+		}
+	}
+	
+	private Path getUndoLogFilePath() {
+		return dirPath.resolve("dst/.bfpu/deduplicate-by-size.undo");
+	}
+	
+	private SourceFile createFile(String fileName, String content, long modifiedMillis)
+			throws IOException {
+		Path filePath = dirPath.resolve("src").resolve(fileName);
+		Files.createDirectories(filePath.getParent());
+		Files.writeString(filePath, content);
+		Files.setLastModifiedTime(filePath, FileTime.fromMillis(modifiedMillis));
+		return readFile(filePath);
+	}
+	
+	private static SourceFile readFile(Path filePath)
+			throws IOException {
+		return new SourceFile(filePath, Files.readAttributes(filePath, BasicFileAttributes.class));
+	}
+	
+}
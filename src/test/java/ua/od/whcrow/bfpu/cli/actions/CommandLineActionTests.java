@@ -0,0 +1,25 @@
+package ua.od.whcrow.bfpu.cli.actions;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CommandLineActionTests {
+	
+	@Test
+	void findsMentionedSource() {
+		assertTrue(CommandLineAction.mentions("/src/clip1.avi: Invalid data found", "/src/clip1.avi"));
+		assertTrue(CommandLineAction.mentions("Error opening '/src/clip1.avi'", "/src/clip1.avi"));
+		assertTrue(CommandLineAction.mentions("Failed to convert /src/clip1.avi.", "/src/clip1.avi"));
+		assertTrue(CommandLineAction.mentions("/src/a.part skipped, /src/a failed", "/src/a"));
+	}
+	
+	@Test
+	void ignoresSourceWithinLongerPath() {
+		assertFalse(CommandLineAction.mentions("/src/clip1.avi.part: No space left", "/src/clip1.avi"));
+		assertFalse(CommandLineAction.mentions("cannot stat /src/ab", "/src/a"));
+		assertFalse(CommandLineAction.mentions("cannot stat /backup/src/a", "/src/a"));
+	}
+	
+}
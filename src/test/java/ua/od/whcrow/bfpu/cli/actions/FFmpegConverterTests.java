@@ -0,0 +1,53 @@
+package ua.od.whcrow.bfpu.cli.actions;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.context.properties.source.MapConfigurationPropertySource;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class FFmpegConverterTests {
+	
+	private static final Map<String,String> PROPERTIES = Map.of(
+			"ffmpeg-converter.file-ext", "mp4",
+			"ffmpeg-converter.video-codec", "h264",
+			"ffmpeg-converter.video-option.crf", "23",
+			"ffmpeg-converter.frame-rate-max", "30");
+	
+	@Test
+	void keepsJournalFingerprintAcrossInstances() {
+		String options = FFmpegConverter.getJournalOptions(bind(PROPERTIES));
+		assertFalse(options.contains("@"), options);
+		assertEquals(RunJournal.fingerprint(options),
+				RunJournal.fingerprint(FFmpegConverter.getJournalOptions(bind(PROPERTIES))));
+	}
+	
+	@Test
+	void changesJournalFingerprintWithOutputOptions() {
+		Map<String,String> properties = new HashMap<>(PROPERTIES);
+		properties.put("ffmpeg-converter.video-option.crf", "28");
+		assertNotEquals(RunJournal.fingerprint(FFmpegConverter.getJournalOptions(bind(PROPERTIES))),
+				RunJournal.fingerprint(FFmpegConverter.getJournalOptions(bind(properties))));
+	}
+	
+	@Test
+	void keepsJournalFingerprintWithSchedulingOptions() {
+		Map<String,String> properties = new HashMap<>(PROPERTIES);
+		properties.put("ffmpeg-converter.core-budget", "4");
+		properties.put("ffmpeg-converter.decode-ahead", "8");
+		assertEquals(RunJournal.fingerprint(FFmpegConverter.getJournalOptions(bind(PROPERTIES))),
+				RunJournal.fingerprint(FFmpegConverter.getJournalOptions(bind(properties))));
+	}
+	
+	private static FFmpegConverterProperties bind(Map<String,String> properties) {
+		return new Binder(new MapConfigurationPropertySource(properties))
+				.bind(FFmpegConverter.ACTION_NAME, FFmpegConverterProperties.class)
+				.get();
+	}
+	
+}
@@ -0,0 +1,93 @@
+package ua.od.whcrow.bfpu.cli.actions;
+
+import org.apache.commons.io.FilenameUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ua.od.whcrow.bfpu.cli._commons.functions.e.FunctionE;
+import ua.od.whcrow.bfpu.cli.exceptions.ActionRunException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TargetPlanTests {
+	
+	private static final Logger LOG = LoggerFactory.getLogger(TargetPlanTests.class);
+	
+	@TempDir
+	Path dirPath;
+	
+	@Test
+	void reportsTargetClaimedByEarlierBatch()
+			throws IOException, ActionRunException {
+		SourceFile avi = createFile("clip.avi");
+		SourceFile mov = createFile("clip.mov");
+		FunctionE<Path,Path,ActionRunException> targetMapper = this::toTarget;
+		TargetPlan plan = new TargetPlan("test");
+		plan.plan(List.of(avi), targetMapper, true, LOG);
+		plan.finishBatch();
+		plan.plan(List.of(mov), targetMapper, true, LOG);
+		assertEquals(toTarget(avi.path()), plan.getTarget(avi.path(), targetMapper));
+		assertThrows(ActionRunException.class, () -> plan.getTarget(mov.path(), targetMapper));
+		assertThrows(ActionRunException.class, () -> plan.plan(List.of(mov), targetMapper, false, LOG));
+	}
+	
+	@Test
+	void releasesTargetOfDeletedSource()
+			throws IOException, ActionRunException {
+		SourceFile avi = createFile("clip.avi");
+		SourceFile mov = createFile("clip.mov");
+		FunctionE<Path,Path,ActionRunException> targetMapper = this::toTarget;
+		TargetPlan plan = new TargetPlan("test");
+		plan.plan(List.of(avi), targetMapper, false, LOG);
+		plan.finishBatch();
+		Files.delete(avi.path());
+		plan.plan(List.of(mov), targetMapper, false, LOG);
+		assertEquals(toTarget(mov.path()), plan.getTarget(mov.path(), targetMapper));
+	}
+	
+	@Test
+	void recreatesTargetDirDeletedBetweenBatches()
+			throws IOException, ActionRunException {
+		SourceFile avi = createFile("clip.avi");
+		Path targetFilePath = dirPath.resolve("dst/sub/clip.mp4");
+		FunctionE<Path,Path,ActionRunException> targetMapper = sourceFilePath -> targetFilePath;
+		TargetPlan plan = new TargetPlan("test");
+		plan.getTarget(avi.path(), targetMapper);
+		plan.finishBatch();
+		Files.delete(targetFilePath.getParent());
+		assertEquals(targetFilePath, plan.getTarget(avi.path(), targetMapper));
+		assertTrue(Files.isDirectory(targetFilePath.getParent()));
+	}
+	
+	@Test
+	void replansSameSource()
+			throws IOException, ActionRunException {
+		SourceFile avi = createFile("clip.avi");
+		FunctionE<Path,Path,ActionRunException> targetMapper = this::toTarget;
+		TargetPlan plan = new TargetPlan("test");
+		plan.plan(List.of(avi), targetMapper, false, LOG);
+		plan.plan(List.of(avi), targetMapper, false, LOG);
+		assertEquals(toTarget(avi.path()), plan.getTarget(avi.path(), targetMapper));
+	}
+	
+	private SourceFile createFile(String fileName)
+			throws IOException {
+		Path filePath = Files.createFile(Files.createDirectories(dirPath.resolve("src")).resolve(fileName));
+		return new SourceFile(filePath, Files.readAttributes(filePath, BasicFileAttributes.class));
+	}
+	
+	private Path toTarget(Path sourceFilePath) {
+		return dirPath.resolve("dst").resolve(FilenameUtils.removeExtension(sourceFilePath.getFileName().toString())
+				+ ".mp4");
+	}
+	
+}
@@ -0,0 +1,120 @@
+package ua.od.whcrow.bfpu.cli.actions;
+
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+import ua.od.whcrow.bfpu.cli.Setting;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+record TestSetting(@Nonnull Path source, @Nonnull Path destination) implements Setting {
+	
+	@Nonnull
+	@Override
+	public Path getSource() {
+		return source;
+	}
+	
+	@Nonnull
+	@Override
+	public Path getDestination() {
+		return destination;
+	}
+	
+	@Override
+	public boolean isRecursive() {
+		return true;
+	}
+	
+	@Nullable
+	@Override
+	public String getGlob() {
+		return null;
+	}
+	
+	@Override
+	public boolean getSkipOnExistingTarget() {
+		return false;
+	}
+	
+	@Override
+	public boolean isFailTolerant() {
+		return false;
+	}
+	
+	@Override
+	public int getParallelism() {
+		return 1;
+	}
+	
+	@Override
+	public int getWalkParallelism() {
+		return 1;
+	}
+	
+	@Override
+	public boolean isJournal() {
+		return false;
+	}
+	
+	@Override
+	public boolean isPipelined() {
+		return false;
+	}
+	
+	@Override
+	public boolean isPlanTargets() {
+		return false;
+	}
+	
+	@Nonnull
+	@Override
+	public Schedule getSchedule() {
+		return Schedule.ENCOUNTER;
+	}
+	
+	@Nullable
+	@Override
+	public Duration getProgressInterval() {
+		return null;
+	}
+	
+	@Override
+	public boolean isWatch() {
+		return false;
+	}
+	
+	@Nonnull
+	@Override
+	public Duration getWatchDebounce() {
+		return Duration.ZERO;
+	}
+	
+	@Override
+	public int getShardIndex() {
+		return 0;
+	}
+	
+	@Override
+	public int getShardCount() {
+		return 1;
+	}
+	
+	@Override
+	public boolean isLease() {
+		return false;
+	}
+	
+	@Nonnull
+	@Override
+	public Duration getLeaseTimeout() {
+		return Duration.ZERO;
+	}
+	
+	@Nullable
+	@Override
+	public String getNode() {
+		return null;
+	}
+	
+}
@@ -0,0 +1,95 @@
+package ua.od.whcrow.bfpu.cli.actions;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class WorkLeasesTests {
+	
+	private static final Logger LOG = LoggerFactory.getLogger(WorkLeasesTests.class);
+	private static final Duration TIMEOUT = Duration.ofMinutes(1);
+	
+	@TempDir
+	Path dirPath;
+	
+	@Test
+	void leasesToOneNodeAtOnce()
+			throws IOException {
+		try (WorkLeases node1 = new WorkLeases(dirPath, TIMEOUT, "node1", LOG);
+				WorkLeases node2 = new WorkLeases(dirPath, TIMEOUT, "node2", LOG)) {
+			assertEquals(WorkLeases.State.CLAIMED, node1.claim("a"));
+			assertEquals(WorkLeases.State.TAKEN, node2.claim("a"));
+			assertEquals(WorkLeases.State.CLAIMED, node2.claim("b"));
+			node1.finish("a", true);
+			assertEquals(WorkLeases.State.DONE, node1.claim("a"));
+			assertEquals(WorkLeases.State.DONE, node2.claim("a"));
+		}
+	}
+	
+	@Test
+	void letsOtherNodesRetryFailedFile()
+			throws IOException {
+		try (WorkLeases node1 = new WorkLeases(dirPath, TIMEOUT, "node1", LOG);
+				WorkLeases node2 = new WorkLeases(dirPath, TIMEOUT, "node2", LOG)) {
+			assertEquals(WorkLeases.State.CLAIMED, node1.claim("a"));
+			node1.finish("a", false);
+			assertEquals(WorkLeases.State.CLAIMED, node2.claim("a"));
+		}
+	}
+	
+	@Test
+	void takesOverExpiredLease()
+			throws IOException {
+		try (WorkLeases node1 = new WorkLeases(dirPath, TIMEOUT, "node1", LOG);
+				WorkLeases node2 = new WorkLeases(dirPath, TIMEOUT, "node2", LOG)) {
+			assertEquals(WorkLeases.State.CLAIMED, node1.claim("a"));
+			// As if node1 stopped renewing it
+			Files.setLastModifiedTime(dirPath.resolve("a.lease"),
+					FileTime.fromMillis(System.currentTimeMillis() - TIMEOUT.toMillis() * 2));
+			assertEquals(WorkLeases.State.CLAIMED, node2.claim("a"));
+			assertEquals(WorkLeases.State.TAKEN, node1.claim("a"));
+			assertEquals("node2", Files.readString(dirPath.resolve("a.lease")));
+		}
+	}
+	
+	@Test
+	void reopensFileDoneBeforeLeasesOpened()
+			throws IOException {
+		try (WorkLeases node1 = new WorkLeases(dirPath, TIMEOUT, "node1", LOG)) {
+			assertEquals(WorkLeases.State.CLAIMED, node1.claim("a"));
+			node1.finish("a", true);
+		}
+		// As if done by an earlier run
+		Files.setLastModifiedTime(dirPath.resolve("a.done"), FileTime.fromMillis(System.currentTimeMillis() - 1000));
+		try (WorkLeases node2 = new WorkLeases(dirPath, TIMEOUT, "node2", LOG)) {
+			assertEquals(WorkLeases.State.DONE_BEFORE, node2.claim("a"));
+			node2.reopen("a");
+			assertEquals(WorkLeases.State.CLAIMED, node2.claim("a"));
+			node2.finish("a", true);
+			// Done since the leases were opened, so it's kept
+			node2.reopen("a");
+			assertEquals(WorkLeases.State.DONE, node2.claim("a"));
+		}
+	}
+	
+	@Test
+	void releasesHeldLeasesOnClose()
+			throws IOException {
+		try (WorkLeases node1 = new WorkLeases(dirPath, TIMEOUT, "node1", LOG)) {
+			assertEquals(WorkLeases.State.CLAIMED, node1.claim("a"));
+		}
+		try (WorkLeases node2 = new WorkLeases(dirPath, TIMEOUT, "node2", LOG)) {
+			assertEquals(WorkLeases.State.CLAIMED, node2.claim("a"));
+		}
+	}
+	
+}